@@ -11,6 +11,7 @@ public enum SiaCommand {
     STOP("/daemon/stop", "GET"),
     CONSENSUS("/consensus", "GET"),
     DOWNLOAD("/renter/download", "GET", true),
+    FILES("/renter/files", "GET"),
     ADDRESS("/wallet/address", "GET"),
     INITSEED("/wallet/init/seed", "POST", true),
     SENDCOINS("/wallet/siacoins", "POST"),//        amount      // hastings //        destination // address
@@ -1,16 +1,19 @@
 package io.minebox.sia;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import com.mashape.unirest.request.HttpRequest;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.nio.file.Files;
@@ -20,6 +23,8 @@ import java.nio.file.attribute.FileTime;
 import java.time.LocalDateTime;
 import java.time.Month;
 import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
 
 public class SiaUtil {
 
@@ -151,6 +156,60 @@ public class SiaUtil {
         return false;
     }
 
+    /**
+     * fetches only part of a file, straight into memory.
+     *
+     * @return the bytes, null if sia was unable to deliver them
+     */
+    public byte[] downloadRange(String siaPath, long offset, long length) {
+        LOGGER.debug("downloading {} bytes at {} of {}", length, offset, siaPath);
+        final HttpResponse<InputStream> downloadResult;
+        try {
+            downloadResult = SiaCommand.DOWNLOAD.unirest(path, siaPath)
+                    .header("User-Agent", "Sia-Agent")
+                    .queryString(ImmutableMap.of("offset", offset, "length", length, "httpresp", true))
+                    .asBinary();
+        } catch (UnirestException e) {
+            throw new NoConnectException(e);
+        }
+        final int status = downloadResult.getStatus();
+        if (status < 200 || status >= 300) {
+            LOGGER.warn("unable to download {} bytes at {} of siaPath {}, status {}", length, offset, siaPath, status);
+            return null;
+        }
+        try (InputStream body = downloadResult.getBody()) {
+            final byte[] bytes = ByteStreams.toByteArray(body);
+            if (bytes.length != length) {
+                LOGGER.warn("expected {} bytes at {} of siaPath {} but got {}", length, offset, siaPath, bytes.length);
+                return null;
+            }
+            return bytes;
+        } catch (IOException e) {
+            LOGGER.warn("unable to read range of siaPath {}", siaPath, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the size of every file the renter knows, by siaPath
+     */
+    public Map<String, Long> fileSizes() {
+        final HttpResponse<String> files = siaCommand(SiaCommand.FILES, ImmutableMap.of());
+        final Map<String, Long> ret = new HashMap<>();
+        if (!statusGood(files)) {
+            LOGGER.warn("unable to list renter files: {}", files == null ? null : files.getBody());
+            return ret;
+        }
+        final JSONArray fileInfos = new JSONObject(files.getBody()).optJSONArray("files");
+        if (fileInfos != null) {
+            for (Object fileInfo : fileInfos) {
+                final JSONObject file = (JSONObject) fileInfo;
+                ret.put(file.getString("siapath"), file.getLong("filesize"));
+            }
+        }
+        return ret;
+    }
+
     private static boolean statusGood(HttpResponse<String> response) {
         if (response == null) {
             return false;
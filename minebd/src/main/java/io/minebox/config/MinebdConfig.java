@@ -1,6 +1,9 @@
 package io.minebox.config;
 
 import io.dropwizard.util.Size;
+import io.minebox.nbd.ExecutionMode;
+import io.minebox.nbd.NbdTransport;
+import io.minebox.nbd.ep.BucketFormat;
 
 import java.util.List;
 
@@ -10,18 +13,36 @@ import java.util.List;
 public class MinebdConfig {
 
     public Integer nbdPort = 10809;
+    public NbdTransport nbdTransport = NbdTransport.NIO;
+    public Integer eventLoopThreads = 0; //0 lets netty decide
+    public Boolean tcpNoDelay = true;
+    public Size socketReceiveBuffer; //unset keeps the OS default
+    public Size socketSendBuffer;
     public Integer maxOpenFiles = 10;
+    public Integer bucketLoadThreads = 4; //buckets which have to be restored first are loaded by these, requests to others go on meanwhile
     public List<String> parentDirs;
     public Size reportedSize = Size.gigabytes(4);
     public String encryptionKeyPath;
     public String authFile;
     public Size bucketSize = Size.megabytes(40);
     public Size maxUnflushed = Size.megabytes(100);
+    public Size streamingWriteChunk = Size.megabytes(1); //larger writes are passed on in chunks while they arrive
+    public ExecutionMode ioExecution = ExecutionMode.PLATFORM;
+    public Integer ioThreads = 10; //disk operations of all connections share this pool
+    public Integer maxVirtualOperations = 256; //with virtual threads, how many disk operations may run at once
+    public Size maxInFlight = Size.megabytes(64); //connections stop reading requests while more than this is queued for disk
     public Size minFreeSystemMem = Size.megabytes(400);
+    public Size keystreamCacheSize = Size.megabytes(16);
+    public Integer encryptionThreads = 0; //large requests are en/decrypted on this many cores, 0 uses all of them
     public String httpMetadata;
     public Boolean ignoreMissingPaths = false;
     public String siaDataDirectory;
     public String siaClientUrl;
+    public Boolean rangeRestore = false; //restore buckets piece by piece as they are accessed instead of whole files first
+    public Size restoreRangeSize = Size.megabytes(1); //smallest piece fetched when restoring piece by piece
+    public Integer restoreConcurrency = 2; //sia downloads running at once, one of them is kept free for downloads somebody waits for
+    public Size restoreBandwidth; //per second, shared by all downloads from sia. pieces somebody waits for never wait for it. unlimited if not set
+    public BucketFormat bucketFormat = BucketFormat.V1; //format of newly created buckets, existing ones keep theirs
 
     public MinebdConfig() {
         //explicit non-annotated constructor so guice does not accidentally this class badly
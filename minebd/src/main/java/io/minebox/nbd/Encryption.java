@@ -11,4 +11,11 @@ import com.google.inject.ImplementedBy;
 public interface Encryption {
     ByteBuffer encrypt(long offset, ByteBuffer message);
 
+    /**
+     * encrypts the remaining bytes of message into target, advancing both buffers.
+     * message and target may be duplicates of the same memory, which allows en/decrypting in place without allocations.
+     */
+    default void encrypt(long offset, ByteBuffer message, ByteBuffer target) {
+        target.put(encrypt(offset, message));
+    }
 }
@@ -0,0 +1,15 @@
+package io.minebox.nbd;
+
+/**
+ * how {@link IoScheduler} runs the blocking disk operations of NBD requests.
+ */
+public enum ExecutionMode {
+    /**
+     * a fixed pool of ioThreads platform threads
+     */
+    PLATFORM,
+    /**
+     * one virtual thread per operation, at most maxVirtualOperations at once. needs java 21, older JVMs fall back to PLATFORM
+     */
+    VIRTUAL
+}
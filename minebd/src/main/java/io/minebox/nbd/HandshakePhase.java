@@ -17,10 +17,12 @@ public class HandshakePhase extends ByteToMessageDecoder {
 
     private final MinebdConfig config;
     private final ExportProvider exportProvider;
+    private final IoScheduler ioScheduler;
 
-    public HandshakePhase(MinebdConfig config, ExportProvider exportProvider) {
+    public HandshakePhase(MinebdConfig config, ExportProvider exportProvider, IoScheduler ioScheduler) {
         this.config = config;
         this.exportProvider = exportProvider;
+        this.ioScheduler = ioScheduler;
     }
 
     private enum State {HS_CLIENT_FLAGS, HS_OPTION_HAGGLING, HS_OPTION_DATA}
@@ -35,6 +37,8 @@ public class HandshakePhase extends ByteToMessageDecoder {
 
     private int currentOption;
     private long currentOptionLen;
+    private boolean structuredReplies = false;
+    private boolean allocationContext = false;
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
@@ -65,9 +69,11 @@ public class HandshakePhase extends ByteToMessageDecoder {
                     if (!hasMin(in, (int) currentOptionLen))
                         return;
 
-                    String o = processOption(ctx, in);
+                    //whatever is not understood of the option data is skipped
+                    String o = processOption(ctx, in.readSlice((int) currentOptionLen));
                     if (o != null) {
                         LOGGER.info("got option: {}", o);
+                        return; //the transmission phase takes over the remaining bytes
                     }
 
                     state = State.HS_OPTION_HAGGLING;
@@ -76,9 +82,12 @@ public class HandshakePhase extends ByteToMessageDecoder {
         }
     }
 
+    /**
+     * @return the export name once the transmission phase was started, null while we are still haggling
+     */
     private String processOption(ChannelHandlerContext ctx, ByteBuf in) throws IOException {
         switch (currentOption) {
-            case Protocol.NBD_OPT_EXPORT_NAME:
+            case Protocol.NBD_OPT_EXPORT_NAME: {
                 CharSequence exportName = in.readCharSequence((int) currentOptionLen, Charset.forName("UTF-8"));
 
                 if (!exportProvider.supportsClientFlags(clientFlags)) {
@@ -97,30 +106,117 @@ public class HandshakePhase extends ByteToMessageDecoder {
 			/* build response */
                 ByteBuf resp = ctx.alloc().buffer(256);
                 resp.writeLong(exportSize);
-                short transmissionFlags =
-                        Protocol.NBD_FLAG_HAS_FLAGS
-                                | Protocol.NBD_FLAG_SEND_FLUSH
-                                | Protocol.NBD_FLAG_SEND_TRIM;
-                resp.writeShort(transmissionFlags);
+                resp.writeShort(transmissionFlags());
 
                 if ((clientFlags & Protocol.NBD_FLAG_NO_ZEROES) == 0) {
                     resp.writeZero(124);
                 }
                 ctx.writeAndFlush(resp);
-
-                //FIXME: transfer any remaining bytes into the transmission phase!
-            /* The NBD protocol has two phases: the handshake (HS_) and the transmission (TM_) */
-                // Handshake complete, switch to transmission phase
-                ctx.pipeline().addLast("transmission", new TransmissionPhase(config, exportProvider));
-                ctx.pipeline().remove(this);
-                return exportName.toString();
-
+                return startTransmission(ctx, exportName);
+            }
+            case Protocol.NBD_OPT_INFO:
+            case Protocol.NBD_OPT_GO: {
+                if (!exportProvider.supportsClientFlags(clientFlags)) {
+                    LOGGER.error("client flags {} not supported", clientFlags);
+                    sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ERR_UNSUP, null);
+                    ctx.channel().close();
+                    break;
+                }
+                final CharSequence exportName = in.readCharSequence(in.readInt(), Charset.forName("UTF-8"));
+                final long exportSize = exportProvider.open(exportName);
+                if (exportSize < 0) {
+                    sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ERR_UNKNOWN, null);
+                    break;
+                }
+                //we send NBD_INFO_EXPORT no matter what was requested, that is all we have to tell
+                final ByteBuf info = ctx.alloc().buffer(12);
+                info.writeShort(Protocol.NBD_INFO_EXPORT);
+                info.writeLong(exportSize);
+                info.writeShort(transmissionFlags());
+                sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_INFO, info);
+                sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ACK, null);
+                if (currentOption == Protocol.NBD_OPT_GO) {
+                    return startTransmission(ctx, exportName);
+                }
+                break;
+            }
+            case Protocol.NBD_OPT_LIST: {
+                final ByteBuf server = ctx.alloc().buffer(4);
+                server.writeInt(0); //we serve the same disk under any name, so we announce the default one
+                sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_SERVER, server);
+                sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ACK, null);
+                break;
+            }
+            case Protocol.NBD_OPT_ABORT:
+                sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ACK, null);
+                ctx.channel().close();
+                break;
+            case Protocol.NBD_OPT_STRUCTURED_REPLY:
+                if (currentOptionLen != 0) {
+                    sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ERR_INVALID, null);
+                    break;
+                }
+                structuredReplies = true;
+                sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ACK, null);
+                break;
+            case Protocol.NBD_OPT_LIST_META_CONTEXT:
+            case Protocol.NBD_OPT_SET_META_CONTEXT:
+                processMetaContextOption(ctx, in);
+                break;
             default:
                 sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ERR_UNSUP, null);
         }
         return null;
     }
 
+    private void processMetaContextOption(ChannelHandlerContext ctx, ByteBuf in) throws IOException {
+        final boolean set = currentOption == Protocol.NBD_OPT_SET_META_CONTEXT;
+        if (set && !structuredReplies) {
+            sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ERR_INVALID, null);
+            return;
+        }
+        in.skipBytes(in.readInt()); //export name, we only have one
+        final int queries = in.readInt();
+        boolean matched = !set && queries == 0; //listing without queries lists everything
+        for (int i = 0; i < queries; i++) {
+            final String query = in.readCharSequence(in.readInt(), Charset.forName("UTF-8")).toString();
+            if (Protocol.BASE_ALLOCATION.equals(query) || (!set && "base:".equals(query))) {
+                matched = true;
+            }
+        }
+        if (set) {
+            allocationContext = matched;
+        }
+        if (matched) {
+            final ByteBuf context = ctx.alloc().buffer(4 + Protocol.BASE_ALLOCATION.length());
+            context.writeInt(Protocol.BASE_ALLOCATION_CONTEXT_ID);
+            context.writeCharSequence(Protocol.BASE_ALLOCATION, Charset.forName("UTF-8"));
+            sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_META_CONTEXT, context);
+        }
+        sendHandshakeOptionHagglingReply(ctx, currentOption, Protocol.NBD_REP_ACK, null);
+    }
+
+    private short transmissionFlags() {
+        int flags = Protocol.NBD_FLAG_HAS_FLAGS
+                | Protocol.NBD_FLAG_SEND_FLUSH
+                | Protocol.NBD_FLAG_SEND_FUA
+                | Protocol.NBD_FLAG_SEND_TRIM
+                | Protocol.NBD_FLAG_SEND_WRITE_ZEROES
+                | Protocol.NBD_FLAG_CAN_MULTI_CONN;
+        if (structuredReplies) {
+            flags |= Protocol.NBD_FLAG_SEND_DF;
+        }
+        return (short) flags;
+    }
+
+    private String startTransmission(ChannelHandlerContext ctx, CharSequence exportName) {
+        /* The NBD protocol has two phases: the handshake (HS_) and the transmission (TM_) */
+        // Handshake complete, switch to transmission phase. bytes the client already sent are handed over when we are removed
+        ctx.pipeline().addLast("transmission", new TransmissionPhase(config, exportProvider, ioScheduler, structuredReplies, allocationContext));
+        ctx.pipeline().remove(this);
+        return exportName.toString();
+    }
+
     private static boolean hasMin(ByteBuf in, int wanted) {
         return in.readableBytes() >= wanted;
     }
@@ -132,7 +228,7 @@ public class HandshakePhase extends ByteToMessageDecoder {
         bb.writeLong(Protocol.IHAVEOPT);
 
         // "handshake flags"
-        handshakeFlags = Protocol.NBD_FLAG_FIXED_NEWSTYLE & Protocol.NBD_FLAG_NO_ZEROES;
+        handshakeFlags = Protocol.NBD_FLAG_FIXED_NEWSTYLE | Protocol.NBD_FLAG_NO_ZEROES;
         bb.writeShort(handshakeFlags);
         ctx.channel().writeAndFlush(bb);
     }
@@ -172,5 +268,6 @@ public class HandshakePhase extends ByteToMessageDecoder {
         ctx.write(optionReply);
         if (data != null)
             ctx.write(data);
+        ctx.flush();
     }
 }
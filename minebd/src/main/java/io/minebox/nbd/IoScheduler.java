@@ -0,0 +1,225 @@
+package io.minebox.nbd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.minebox.config.MinebdConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * runs the disk operations of all NBD connections, either on a bounded pool or on virtual threads (see {@link ExecutionMode}).
+ * submitting never blocks, instead callers learn when too many bytes are in flight and stop reading from their socket
+ * until {@link #whenAvailable(Runnable)} tells them to go on. reads are served before writes.
+ */
+@Singleton
+public class IoScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IoScheduler.class);
+
+    public enum Priority {
+        READ, WRITE
+    }
+
+    private final PriorityBlockingQueue<PrioritizedTask> queue = new PriorityBlockingQueue<>();
+    private final ExecutorService executor;
+    private final Semaphore permits; //only used when every operation gets its own thread, the pool bounds itself otherwise
+    private final int maxOperations;
+    private final long maxInFlightBytes;
+    private final AtomicLong inFlightBytes = new AtomicLong(0);
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final List<Runnable> waiting = new ArrayList<>();
+
+    @Inject
+    public IoScheduler(MinebdConfig config, MetricRegistry metrics) {
+        this(config.ioExecution == ExecutionMode.VIRTUAL ? newVirtualThreadExecutor() : null,
+                config.maxVirtualOperations, config.ioThreads, config.maxInFlight.toBytes());
+        metrics.gauge("ioInFlightBytes", () -> inFlightBytes::get);
+        metrics.gauge("ioQueuedOperations", () -> queue::size);
+    }
+
+    @VisibleForTesting
+    public IoScheduler(int threads, long maxInFlightBytes) {
+        this(null, 0, threads, maxInFlightBytes);
+    }
+
+    /**
+     * @param perTaskExecutor starts a new thread for every task, null to use a pool of threads instead
+     */
+    @VisibleForTesting
+    IoScheduler(ExecutorService perTaskExecutor, int maxOperations, int threads, long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxOperations = maxOperations;
+        if (perTaskExecutor != null) {
+            LOGGER.info("running disk operations on separate threads, at most {} at once", maxOperations);
+            executor = perTaskExecutor;
+            permits = new Semaphore(maxOperations);
+        } else {
+            LOGGER.info("running disk operations on {} threads", threads);
+            //the pool takes from the queue by itself
+            @SuppressWarnings("unchecked") final PriorityBlockingQueue<Runnable> poolQueue = (PriorityBlockingQueue<Runnable>) (PriorityBlockingQueue<?>) queue;
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, poolQueue,
+                    new ThreadFactoryBuilder().setNameFormat("nbdIo-%d").setDaemon(true).build());
+            permits = null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            //looked up reflectively, we still compile for and run on java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("virtual threads are not available on java {}, falling back to platform threads", System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    /**
+     * @param bytes how much memory the operation holds on to until it is done
+     */
+    public void execute(Priority priority, long bytes, Runnable task) {
+        execute(priority, bytes, null, task);
+    }
+
+    /**
+     * like {@link #execute(Priority, long, Runnable)}, but the task is only queued once ready completes, however it does.
+     * until then it takes up no thread, its bytes count as in flight right away though.
+     */
+    public void execute(Priority priority, long bytes, CompletableFuture<?> ready, Runnable task) {
+        inFlightBytes.addAndGet(bytes);
+        final PrioritizedTask prioritized = new PrioritizedTask(priority, sequence.getAndIncrement(), () -> {
+            try {
+                task.run();
+            } finally {
+                release(bytes);
+            }
+        });
+        if (ready == null || ready.isDone()) {
+            dispatch(prioritized);
+        } else {
+            ready.whenComplete((ignored, e) -> dispatch(prioritized));
+        }
+    }
+
+    private void dispatch(PrioritizedTask prioritized) {
+        if (permits == null) {
+            executor.execute(prioritized);
+        } else {
+            queue.add(prioritized);
+            startQueued();
+        }
+    }
+
+    private void startQueued() {
+        while (!queue.isEmpty() && permits.tryAcquire()) {
+            final PrioritizedTask next = queue.poll();
+            if (next == null) {
+                permits.release();
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    next.run();
+                } finally {
+                    permits.release();
+                    startQueued();
+                }
+            });
+        }
+    }
+
+    public boolean isSaturated() {
+        return inFlightBytes.get() > maxInFlightBytes;
+    }
+
+    /**
+     * runs the callback as soon as we are not saturated anymore, right away if we are not.
+     */
+    public void whenAvailable(Runnable callback) {
+        synchronized (waiting) {
+            if (isSaturated()) {
+                waiting.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    private void release(long bytes) {
+        if (inFlightBytes.addAndGet(-bytes) > maxInFlightBytes) {
+            return;
+        }
+        final List<Runnable> callbacks;
+        synchronized (waiting) {
+            if (waiting.isEmpty() || isSaturated()) {
+                return;
+            }
+            callbacks = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        callbacks.forEach(Runnable::run);
+    }
+
+    public void shutdown() {
+        try {
+            if (permits != null) {
+                awaitQueueDrained();
+            }
+            executor.shutdown();
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOGGER.warn("{} disk operations did not finish in time", queue.size());
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("interrupted while waiting for disk operations to finish");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void awaitQueueDrained() throws InterruptedException {
+        //queued operations are started by the finishing ones, so we own the executor once we hold every permit
+        while (permits.tryAcquire(maxOperations, 30, TimeUnit.SECONDS)) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            permits.release(maxOperations);
+            startQueued();
+        }
+        LOGGER.warn("disk operations are still running, shutting down anyway");
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Priority priority;
+        private final long sequence;
+        private final Runnable task;
+
+        PrioritizedTask(Priority priority, long sequence, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            final int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
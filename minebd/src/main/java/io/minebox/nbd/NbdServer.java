@@ -8,10 +8,15 @@ import io.minebox.config.MinebdConfig;
 import io.minebox.nbd.encryption.EncyptionKeyProvider;
 import io.minebox.nbd.ep.ExportProvider;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
@@ -29,22 +34,29 @@ import static io.netty.util.NetUtil.*;
 public class NbdServer implements Managed {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(NbdServer.class);
+    private static final PooledByteBufAllocator ALLOCATOR = new PooledByteBufAllocator(true);
     private final int port;
     private final SystemdUtil systemdUtil;
     private final ExportProvider exportProvider;
     private final EncyptionKeyProvider encyptionKeyProvider;
     private final MinebdConfig config;
+    private final IoScheduler ioScheduler;
     private EventLoopGroup eventLoopGroup;
     private volatile State state = IDLE;
 
     @VisibleForTesting
-    @Inject
     public NbdServer(MinebdConfig config, SystemdUtil systemdUtil, ExportProvider exportProvider, EncyptionKeyProvider encyptionKeyProvider) {
+        this(config, systemdUtil, exportProvider, encyptionKeyProvider, new IoScheduler(config.ioThreads, config.maxInFlight.toBytes()));
+    }
+
+    @Inject
+    public NbdServer(MinebdConfig config, SystemdUtil systemdUtil, ExportProvider exportProvider, EncyptionKeyProvider encyptionKeyProvider, IoScheduler ioScheduler) {
         this.port = config.nbdPort;
         this.config = config;
         this.systemdUtil = systemdUtil;
         this.exportProvider = exportProvider;
         this.encyptionKeyProvider = encyptionKeyProvider;
+        this.ioScheduler = ioScheduler;
     }
 
     @Override
@@ -61,13 +73,15 @@ public class NbdServer implements Managed {
         LOGGER.info("shutdown detected..");
         systemdUtil.sendStopping();
         try {
-            exportProvider.close();
+            //first no new requests, then the queued disk operations run, and only then the buckets get closed
             LOGGER.info("shutting down eventLoops");
             try {
                 eventLoopGroup.shutdownGracefully().sync();
             } catch (InterruptedException e) {
                 LOGGER.info("error shutting down eventLoops");
             }
+            ioScheduler.shutdown();
+            exportProvider.close();
             LOGGER.info("we appear to have shut down gracefully..");
         } catch (IOException e) {
             LOGGER.error("unable to flush and close ", e);
@@ -89,12 +103,14 @@ public class NbdServer implements Managed {
                 throw new IllegalStateException("i expected to be starting");
             }
             state = KEY_DETECTED;
-            eventLoopGroup = new NioEventLoopGroup();
+            final boolean epoll = useEpoll();
+            eventLoopGroup = epoll ? new EpollEventLoopGroup(config.eventLoopThreads) : new NioEventLoopGroup(config.eventLoopThreads);
             ServerBootstrap bootstrap = new ServerBootstrap();
             final boolean hasIpv6 = LOCALHOST.equals(LOCALHOST6);
             final ServerBootstrap serverBootstrap = bootstrap.group(eventLoopGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
                     .localAddress(new InetSocketAddress(LOCALHOST, port));
+            configureSockets(serverBootstrap);
             if (hasIpv6) {
                 //also add v4
                 serverBootstrap.localAddress(LOCALHOST4, port);
@@ -102,7 +118,7 @@ public class NbdServer implements Managed {
             serverBootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 protected void initChannel(SocketChannel ch) throws Exception {
-                    ch.pipeline().addLast(new HandshakePhase(config,exportProvider));
+                    ch.pipeline().addLast(new HandshakePhase(config, exportProvider, ioScheduler));
                 }
             });
             initializeBlockZero();
@@ -120,6 +136,33 @@ public class NbdServer implements Managed {
         });
     }
 
+    private boolean useEpoll() {
+        if (config.nbdTransport != NbdTransport.EPOLL) {
+            return false;
+        }
+        if (!Epoll.isAvailable()) {
+            LOGGER.warn("epoll transport is not available, falling back to NIO", Epoll.unavailabilityCause());
+            return false;
+        }
+        LOGGER.info("using native epoll transport");
+        return true;
+    }
+
+    private void configureSockets(ServerBootstrap serverBootstrap) {
+        //every byte of disk I/O passes through here, pooled direct buffers save a copy into the socket
+        serverBootstrap.childOption(ChannelOption.ALLOCATOR, ALLOCATOR)
+                .childOption(ChannelOption.TCP_NODELAY, config.tcpNoDelay);
+        if (config.socketReceiveBuffer != null) {
+            //set on the listening socket too, the TCP window scale of accepted connections is fixed by then
+            final int receiveBuffer = (int) config.socketReceiveBuffer.toBytes();
+            serverBootstrap.option(ChannelOption.SO_RCVBUF, receiveBuffer)
+                    .childOption(ChannelOption.SO_RCVBUF, receiveBuffer);
+        }
+        if (config.socketSendBuffer != null) {
+            serverBootstrap.childOption(ChannelOption.SO_SNDBUF, (int) config.socketSendBuffer.toBytes());
+        }
+    }
+
     private void initializeBlockZero() {
         LOGGER.info("trying to obtain block 0");
         //we try to read a single byte from the beginning of the "disk".
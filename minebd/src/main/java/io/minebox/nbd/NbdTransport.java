@@ -0,0 +1,15 @@
+package io.minebox.nbd;
+
+/**
+ * netty transport the NBD port is served with.
+ */
+public enum NbdTransport {
+    /**
+     * java NIO, works everywhere
+     */
+    NIO,
+    /**
+     * netty's native epoll transport, linux only. falls back to NIO where the native library can not be loaded
+     */
+    EPOLL
+}
@@ -11,4 +11,9 @@ public class NullEncryption implements Encryption {
     public ByteBuffer encrypt(long offset, ByteBuffer message) {
         return message;
     }
+
+    @Override
+    public void encrypt(long offset, ByteBuffer message, ByteBuffer target) {
+        target.put(message);
+    }
 }
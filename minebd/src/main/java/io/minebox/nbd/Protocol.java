@@ -16,6 +16,18 @@ public class Protocol {
      * Client wishes to abort negotiation
      */
     public static final int NBD_OPT_LIST = 3;
+    public static final int NBD_OPT_INFO = 6;
+    public static final int NBD_OPT_GO = 7;
+    public static final int NBD_OPT_STRUCTURED_REPLY = 8;
+    public static final int NBD_OPT_LIST_META_CONTEXT = 9;
+    public static final int NBD_OPT_SET_META_CONTEXT = 10;
+
+    /* option replies */
+    public static final int NBD_REP_ACK = 1;
+    public static final int NBD_REP_SERVER = 2;
+    public static final int NBD_REP_INFO = 3;
+    public static final int NBD_REP_META_CONTEXT = 4;
+    public static final int NBD_INFO_EXPORT = 0;
 
     /* values for transmission flags field */
     public static final int NBD_FLAG_HAS_FLAGS = (1 << 0); /* Flags are there */
@@ -24,6 +36,9 @@ public class Protocol {
     public static final int NBD_FLAG_SEND_FUA = (1 << 3); /* Send FUA (Force Unit Access) */
     public static final int NBD_FLAG_ROTATIONAL = (1 << 4); /* Use elevator algorithm - rotational media */
     public static final int NBD_FLAG_SEND_TRIM = (1 << 5); /* Send TRIM (discard) */
+    public static final int NBD_FLAG_SEND_WRITE_ZEROES = (1 << 6); /* Send WRITE_ZEROES */
+    public static final int NBD_FLAG_SEND_DF = (1 << 7); /* reads may be asked not to be fragmented */
+    public static final int NBD_FLAG_CAN_MULTI_CONN = (1 << 8); /* flushes cover writes of all connections */
 
     /* commands */
     public static final int NBD_CMD_READ = 0;
@@ -31,6 +46,29 @@ public class Protocol {
     public static final int NBD_CMD_DISC = 2;
     public static final int NBD_CMD_FLUSH = 3;
     public static final int NBD_CMD_TRIM = 4;
+    public static final int NBD_CMD_WRITE_ZEROES = 6;
+    public static final int NBD_CMD_BLOCK_STATUS = 7;
+
+    /* command flags */
+    public static final int NBD_CMD_FLAG_FUA = (1 << 0); /* data has to be on stable storage before the reply */
+    public static final int NBD_CMD_FLAG_NO_HOLE = (1 << 1); /* WRITE_ZEROES must not deallocate the range */
+    public static final int NBD_CMD_FLAG_DF = (1 << 2); /* the read has to be answered in a single chunk */
+    public static final int NBD_CMD_FLAG_REQ_ONE = (1 << 3); /* BLOCK_STATUS only wants a single extent */
+
+    /* structured replies */
+    public static final int NBD_STRUCTURED_REPLY_MAGIC = 0x668e33ef;
+    public static final int NBD_REPLY_FLAG_DONE = (1 << 0);
+    public static final int NBD_REPLY_TYPE_NONE = 0;
+    public static final int NBD_REPLY_TYPE_OFFSET_DATA = 1;
+    public static final int NBD_REPLY_TYPE_OFFSET_HOLE = 2;
+    public static final int NBD_REPLY_TYPE_BLOCK_STATUS = 5;
+    public static final int NBD_REPLY_TYPE_ERROR = (1 << 15) + 1;
+
+    /* base:allocation meta context */
+    public static final String BASE_ALLOCATION = "base:allocation";
+    public static final int BASE_ALLOCATION_CONTEXT_ID = 1; //the only context we offer
+    public static final int NBD_STATE_HOLE = (1 << 0);
+    public static final int NBD_STATE_ZERO = (1 << 1);
 
     /* response flags */
     public static final int NBD_REP_FLAG_ERROR = (1 << 31);
@@ -50,6 +88,10 @@ public class Protocol {
      * Client issued an invalid request
      */
     public static final int NBD_REP_ERR_PLATFORM = (4 | NBD_REP_FLAG_ERROR);
+    public static final int NBD_REP_ERR_UNKNOWN = (6 | NBD_REP_FLAG_ERROR);
+    /**
+     * The requested export is not available
+     */
 
 //	https://github.com/NetworkBlockDevice/nbd/blob/master/doc/proto.md
 
@@ -60,4 +102,5 @@ public class Protocol {
 
     public static final long HANDSHAKE_REPLY_MAGIC = 0x3e889045565a9L;
     public final static int EIO_ERROR = 5;
+    public final static int EINVAL_ERROR = 22;
 }
@@ -1,132 +1,208 @@
 package io.minebox.nbd.download;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import io.minebox.sia.SiaFileUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.time.Instant;
-import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * restores every file from sia, those somebody waits for first and the rest in the background, closest to what was
+ * requested recently first. at most a configured number of downloads run at once, one of those is never taken by the
+ * background, so a download somebody waits for starts right away. background ones are only picked once they can start
+ * right away, so they follow the latest requests.
+ */
 public class BackgroundDelegatedDownloadService implements DownloadService {
 
-    private static final ExecutorService BACKGROUND_SCHEDULER = Executors.newFixedThreadPool(2); //for scheduling background downloads
-    private static final ExecutorService DOWNLOADER = Executors.newCachedThreadPool(); //infinite "foreground downloader slots.
     private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundDelegatedDownloadService.class);
+    private static final int ON_DEMAND = 0;
+    private static final int BACKGROUND = 1;
+    private static final int RECENT_REQUESTS = 16; //requested buckets the background restore stays close to
     private final DownloadService delegate;
-    private final Deque<RecoverableFile> allRecoverableFiles;
-    private final TreeSet<UserFileRequest> userRequestedFiles; //todo limit this size to same as background_downloader
+    private final RestoreQueue backgroundQueue;
+    private final ThreadPoolExecutor restorers;
+    private final Semaphore backgroundSlots;
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final Thread inserter;
+    private volatile boolean shuttingDown = false;
 
     private final LoadingCache<RecoverableFile, RecoveryStatus> requestCache = CacheBuilder.newBuilder().build(new CacheLoader<RecoverableFile, RecoveryStatus>() {
         @Override
         public RecoveryStatus load(RecoverableFile maxPriorityFile) throws Exception {
-            return getSubmitter(maxPriorityFile, DOWNLOADER).call();
+            return restore(maxPriorityFile);
         }
     });
 
-    private static class UserFileRequest implements Comparable<UserFileRequest> {
-        Instant requestedAt;
-        RecoverableFile file;
-        int bucketNumber;
-
-        public UserFileRequest(Instant requestedAt, RecoverableFile file) {
-            this.requestedAt = requestedAt;
-            this.file = file;
-        }
-
-        @Override
-        public int compareTo(UserFileRequest o) {
-            return this.requestedAt.compareTo(o.requestedAt);
-        }
+    /**
+     * @param concurrency downloads running at once. with 1, there is still one for the background and one on demand
+     */
+    public BackgroundDelegatedDownloadService(DownloadService delegate, List<RecoverableFile> recoverableFiles, int concurrency) {
+        Preconditions.checkArgument(concurrency > 0, "restoreConcurrency must be positive");
+        this.delegate = delegate;
+        final int background = Math.max(1, concurrency - 1);
+        final int threads = background + 1; //the reserve for downloads somebody waits for
+        LOGGER.info("found {} files to potentially download in background, {} at once and {} on demand", recoverableFiles.size(), background, threads - background);
+        backgroundQueue = new RestoreQueue(recoverableFiles, RECENT_REQUESTS);
+        //ordered, somebody waiting for a file goes before the background
+        restorers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("siaRestore-%d")
+                        .setDaemon(true)
+                        .build());
+        backgroundSlots = new Semaphore(background);
+        inserter = new Thread(this::insertBackgroundRestores, "downloadInserter");
+        inserter.setDaemon(true);
+        inserter.start();
     }
 
-    public BackgroundDelegatedDownloadService(DownloadService delegate, List<RecoverableFile> recoverableFiles) {
-        this.delegate = delegate;
-        LOGGER.info("found {} files to potentially download in background", recoverableFiles.size());
-        this.allRecoverableFiles = new ArrayDeque<>(recoverableFiles);
-        userRequestedFiles = new TreeSet<>();
-        new Thread("downloadInserter") {
-            @Override
-            public void run() {
-                while (!allRecoverableFiles.isEmpty()) { //todo find a way to shut this down gracefully if needed
-                    submitBackgroundDownload();
+    private void insertBackgroundRestores() {
+        try {
+            while (!shuttingDown && !backgroundQueue.isEmpty()) {
+                backgroundSlots.acquire(); //decide on the next file only once it can start
+                final RecoverableFile maxPriorityFile = backgroundQueue.next();
+                if (maxPriorityFile == null) {
+                    backgroundSlots.release(); //the last ones were requested meanwhile
+                    break;
                 }
+                LOGGER.info("putting {} in the queue", maxPriorityFile.fileName);
+                execute(BACKGROUND, () -> {
+                    try {
+                        if (!shuttingDown) {
+                            requestCache.getUnchecked(maxPriorityFile);
+                        }
+                    } catch (RuntimeException e) {
+                        if (!shuttingDown) {
+                            LOGGER.warn("unable to restore {} in the background", maxPriorityFile.fileName, e);
+                        }
+                    } finally {
+                        backgroundSlots.release();
+                    }
+                }, backgroundSlots::release);
+            }
+            if (!shuttingDown) {
                 LOGGER.info("all download tasks are finished now, quitting..");
             }
-        }.start();
+        } catch (InterruptedException | RejectedExecutionException e) {
+            LOGGER.info("stopped scheduling background downloads, {} files are left", backgroundQueue.size());
+        }
     }
 
-    private void sortByDistanceToRequested() {
-        List<RecoverableFile> list = new ArrayList<>(this.allRecoverableFiles);
-        //todo find a way to do this more elegantly, this is O(n*log(n)*m) and lots of linear overhead.. bad.
-        //where n = number of buckets and m = buckets requested.
-        //potential solution: limit userRequestedFile to a small number, based on access time.
-        //
-        list.sort((o1, o2) -> {
-            final int o1BucketNumber = SiaFileUtil.fileToNumber(o1.fileName);
-            final int o2BucketNumber = SiaFileUtil.fileToNumber(o2.fileName);
-            int mino1 = Integer.MAX_VALUE;
-            int mino2 = Integer.MAX_VALUE;
-            for (UserFileRequest userRequestedFile : userRequestedFiles) {
-                final int o1Distance = userRequestedFile.bucketNumber - o1BucketNumber;
-                final int o2Distance = userRequestedFile.bucketNumber - o2BucketNumber;
-                if (o1Distance >= 0 && o1Distance < mino1) {
-                    mino1 = o1Distance;
-                }
-                if (o2Distance >= 0 && o2Distance < mino1) {
-                    mino2 = o2Distance;
+    /**
+     * @param dropped runs instead of the task if it never started because we shut down
+     */
+    private void execute(int priority, Runnable task, Runnable dropped) {
+        restorers.execute(new PrioritizedRestore(priority, sequence.incrementAndGet(), task, dropped));
+    }
+
+    private RecoveryStatus restore(RecoverableFile file) {
+        final PartialRestore partialRestore = delegate.partialRestore(file);
+        if (partialRestore != null) {
+            return backfill(file, partialRestore);
+        }
+        LOGGER.debug("delegating download of {}", file.fileName);
+        return this.delegate.downloadIfPossible(file);
+    }
+
+    private RecoveryStatus backfill(RecoverableFile file, PartialRestore partialRestore) {
+        LOGGER.debug("backfilling the missing ranges of {}", file.fileName);
+        try {
+            while (partialRestore.backfillNext()) {
+                partialRestore.save(); //so a restart does not fetch it all again
+                if (shuttingDown) {
+                    throw new CancellationException("shutting down, " + file.fileName + " continues after the restart"); //not cached
                 }
             }
-            final int distanceDifference = mino1 - mino2;
-            if (distanceDifference == 0) {
-                //todo check access times to prioritize
-            }
-            return distanceDifference;
-
-        });
-        LOGGER.info("determining top prio files");
-        LOGGER.debug("download queue: {}", list);
-        LOGGER.debug("userRequestedFiles {}", userRequestedFiles);
-        allRecoverableFiles.clear();
-        allRecoverableFiles.addAll(list);
+            partialRestore.promoteIfComplete(); //unless a bucket is open on it, then that does it once it is closed
+            return RecoveryStatus.RECOVERED;
+        } catch (IOException e) {
+            LOGGER.warn("unable to backfill {}", file.fileName, e);
+            return RecoveryStatus.ERROR;
+        }
     }
 
-    private void submitBackgroundDownload() {
-        try {
-            CountDownLatch started = new CountDownLatch(1);
-            BACKGROUND_SCHEDULER.submit(() -> {
-                sortByDistanceToRequested();
-                final RecoverableFile maxPriorityFile = allRecoverableFiles.removeFirst();
-                LOGGER.info("putting {} in the queue", maxPriorityFile.fileName);
-                started.countDown();
-                requestCache.getUnchecked(maxPriorityFile);
-            });
-            LOGGER.debug("waiting for download...");
-            started.await(); //block until download has been triggered, not until download is complete
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    @Override
+    public PartialRestore partialRestore(RecoverableFile file) {
+        final PartialRestore ret = delegate.partialRestore(file);
+        if (ret != null) {
+            backgroundQueue.accessed(file); //a bucket is opened on it, the background continues there and around it
         }
+        return ret;
     }
 
-    private Callable<RecoveryStatus> getSubmitter(RecoverableFile maxPriorityFile, ExecutorService service) {
-        return () -> service.submit(() -> {
-            LOGGER.debug("delegating download of {}", maxPriorityFile.fileName);
-            return this.delegate.downloadIfPossible(maxPriorityFile);
-        }).get();
+    @Override
+    public boolean isRecoverable(RecoverableFile file) {
+        return delegate.isRecoverable(file);
     }
 
     @Override
     public RecoveryStatus downloadIfPossible(RecoverableFile file) {
+        final RecoveryStatus done = requestCache.getIfPresent(file);
+        if (done != null) {
+            return done;
+        }
         LOGGER.info("directly requesting {} in the immediate downloader", file.fileName);
-        userRequestedFiles.add(new UserFileRequest(Instant.now(), file));
-        return requestCache.getUnchecked(file);
+        backgroundQueue.requested(file);
+        final CompletableFuture<RecoveryStatus> result = new CompletableFuture<>();
+        try {
+            execute(ON_DEMAND, () -> {
+                if (shuttingDown) {
+                    result.complete(RecoveryStatus.ERROR);
+                    return;
+                }
+                try {
+                    result.complete(requestCache.getUnchecked(file));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }, () -> result.complete(RecoveryStatus.ERROR));
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("already shut down, unable to download {}", file.fileName);
+            return RecoveryStatus.ERROR;
+        }
+        return result.join();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown(1, TimeUnit.MINUTES);
+    }
+
+    @VisibleForTesting
+    void shutdown(long timeout, TimeUnit unit) {
+        shuttingDown = true;
+        inserter.interrupt();
+        restorers.shutdown(); //whatever is queued still runs, but returns right away
+        try {
+            if (!restorers.awaitTermination(timeout, unit)) {
+                LOGGER.warn("downloads are still running, not waiting for them any longer");
+                dropQueued();
+            }
+        } catch (InterruptedException e) {
+            dropQueued();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dropQueued() {
+        //whoever waits for a download which never started gets an answer
+        for (Runnable dropped : restorers.shutdownNow()) {
+            ((PrioritizedRestore) dropped).dropped.run();
+        }
     }
 
     @Override
@@ -143,4 +219,29 @@ public class BackgroundDelegatedDownloadService implements DownloadService {
     public double completedPercent(File parentDir) {
         return delegate.completedPercent(parentDir);
     }
+
+    private static final class PrioritizedRestore implements Runnable, Comparable<PrioritizedRestore> {
+        private final int priority;
+        private final long sequence;
+        private final Runnable task;
+        private final Runnable dropped;
+
+        PrioritizedRestore(int priority, long sequence, Runnable task, Runnable dropped) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+            this.dropped = dropped;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedRestore o) {
+            final int byPriority = Integer.compare(priority, o.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, o.sequence);
+        }
+    }
 }
@@ -5,6 +5,7 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.math.LongMath;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -12,10 +13,13 @@ import com.google.inject.name.Named;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Size;
 import io.minebox.sia.SiaUtil;
 import io.minebox.nbd.RemoteTokenService;
 import io.minebox.nbd.SerialNumberService;
 import io.minebox.nbd.SiaSeedService;
+import io.minebox.nbd.encryption.EncConstants;
 import io.minebox.nbd.encryption.EncyptionKeyProvider;
 import io.minebox.util.FileUtil;
 import org.apache.commons.lang3.tuple.Pair;
@@ -24,9 +28,11 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.RoundingMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -39,7 +45,7 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 @Singleton
-public class DownloadFactory implements Provider<DownloadService> {
+public class DownloadFactory implements Provider<DownloadService>, Managed {
     private final MetaDataStatus.MetaDataStatusProvider metaDataStatusProvider;
     private RemoteTokenService remoteTokenService;
     private final String metadataUrl;
@@ -53,6 +59,9 @@ public class DownloadFactory implements Provider<DownloadService> {
     private volatile DownloadService initializedDownloadService;
     private final SiaProcessController siaProcessController;
     private final SerialNumberService serialNumberService;
+    private final long restoreRangeSize;
+    private final int restoreConcurrency;
+    private final long restoreBandwidth;
 
     @Inject
     public DownloadFactory(MetaDataStatus.MetaDataStatusProvider metaDataStatusProvider,
@@ -63,7 +72,11 @@ public class DownloadFactory implements Provider<DownloadService> {
                            SiaUtil siaUtil,
                            SiaSeedService siaSeedService,
                            SiaProcessController siaProcessController,
-                           SerialNumberService serialNumberService) {
+                           SerialNumberService serialNumberService,
+                           @Named("rangeRestore") Boolean rangeRestore,
+                           @Named("restoreRangeSize") Size restoreRangeSize,
+                           @Named("restoreConcurrency") Integer restoreConcurrency,
+                           @Nullable @Named("restoreBandwidth") Size restoreBandwidth) {
 
         this.metaDataStatusProvider = metaDataStatusProvider;
         this.remoteTokenService = remoteTokenService;
@@ -74,6 +87,10 @@ public class DownloadFactory implements Provider<DownloadService> {
         this.siaSeedService = siaSeedService;
         this.siaProcessController = siaProcessController;
         this.serialNumberService = serialNumberService;
+        //whole blocks only, a block which is only partly there can not be decrypted
+        this.restoreRangeSize = rangeRestore ? LongMath.checkedMultiply(LongMath.divide(restoreRangeSize.toBytes(), EncConstants.BLOCKSIZE, RoundingMode.CEILING), EncConstants.BLOCKSIZE) : 0;
+        this.restoreConcurrency = restoreConcurrency;
+        this.restoreBandwidth = restoreBandwidth == null ? 0 : restoreBandwidth.toBytes();
     }
 
     @Inject
@@ -131,7 +148,7 @@ public class DownloadFactory implements Provider<DownloadService> {
     }
 
     private DownloadService buildSiaDownload(Map<String, String> lookup) {
-        final SiaHostedDownload siaHostedDownload = new SiaHostedDownload(siaUtil, lookup);
+        final SiaHostedDownload siaHostedDownload = new SiaHostedDownload(siaUtil, lookup, restoreRangeSize, restoreBandwidth);
 //
 
         final List<RecoverableFile> recoverableFiles = lookup.keySet().stream()
@@ -140,7 +157,7 @@ public class DownloadFactory implements Provider<DownloadService> {
                 .filter(file -> !existsSomewhere(file))
                 .collect(Collectors.toList());
 
-        return new BackgroundDelegatedDownloadService(siaHostedDownload, recoverableFiles);
+        return new BackgroundDelegatedDownloadService(siaHostedDownload, recoverableFiles, restoreConcurrency);
 //        return siaHostedDownload;
     }
 
@@ -200,6 +217,18 @@ public class DownloadFactory implements Provider<DownloadService> {
         return initializedDownloadService;
     }
 
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+        final DownloadService downloadService = initializedDownloadService;
+        if (downloadService != null) {
+            downloadService.shutdown();
+        }
+    }
+
     private static Pair<String, Long> parseTimestamp(String input) {
         final ArrayList<String> segments = Lists.newArrayList(Splitter.on(".").split(input));
         final String removed = segments.remove(1);//remove timestamp
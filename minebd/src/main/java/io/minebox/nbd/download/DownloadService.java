@@ -16,6 +16,26 @@ public interface DownloadService {
 
     RecoveryStatus downloadIfPossible(RecoverableFile file);
 
+    /**
+     * @return false if {@link #downloadIfPossible(RecoverableFile)} would answer {@link RecoveryStatus#NO_FILE}, without asking it
+     */
+    default boolean isRecoverable(RecoverableFile file) {
+        return true;
+    }
+
+    /**
+     * @return the restore of this file piece by piece, shared by everyone asking. null if this service can only download whole files
+     */
+    default PartialRestore partialRestore(RecoverableFile file) {
+        return null;
+    }
+
+    /**
+     * stops restoring in the background. downloads which are running already get some time to complete.
+     */
+    default void shutdown() {
+    }
+
     boolean hasMetadata();
 
     boolean connectedMetadata();
@@ -8,6 +8,11 @@ public class NothingTodoDownloadService implements DownloadService {
         return RecoveryStatus.NO_FILE;
     }
 
+    @Override
+    public boolean isRecoverable(RecoverableFile file) {
+        return false;
+    }
+
     @Override
     public boolean hasMetadata() {
         return false;
@@ -0,0 +1,318 @@
+package io.minebox.nbd.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * a bucket file which is restored piece by piece instead of all at once. the pieces which arrived are written into a sparse
+ * "name.partial" next to where the file belongs, which ranges are there already is kept in "name.partial.present".
+ * only once every byte arrived and no bucket uses it anymore the partial file is renamed to its real name, so backups never
+ * see an incomplete file.
+ * the contents are the raw bucket file, encrypted just like on the remote side.
+ */
+public class PartialRestore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartialRestore.class);
+    private static final int MAGIC = 0x4d425052; //"MBPR"
+    static final String PARTIAL_SUFFIX = ".partial";
+    private static final String PRESENT_SUFFIX = ".present";
+
+    public interface RangeFetcher {
+        /**
+         * @param background nobody waits for this piece, it may be slowed down
+         */
+        byte[] fetch(long offset, int length, boolean background) throws IOException;
+    }
+
+    private final RecoverableFile file;
+    private final long length;
+    private final long fetchSize;
+    private final RangeFetcher fetcher;
+    private final Runnable onPromoted;
+    private final List<Path> partialFiles = new ArrayList<>();
+    private final Path presentFile;
+    private final RangeSet<Long> present; //guarded by this
+    private final List<FileChannel> channels = new ArrayList<>(); //guarded by this
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> fetching = new ConcurrentHashMap<>();
+    private final List<Range<Long>> overwriting = new ArrayList<>(); //guarded by this, may overlap
+    private boolean dirty = false; //guarded by this
+    private int users = 0; //guarded by this
+    private boolean promoted = false; //guarded by this
+
+    /**
+     * @param length    size of the complete file
+     * @param fetchSize ranges are fetched in pieces of this size, so neighbouring small reads do not each cost a round trip
+     */
+    public PartialRestore(RecoverableFile file, long length, long fetchSize, RangeFetcher fetcher, Runnable onPromoted) throws IOException {
+        this.file = file;
+        this.length = length;
+        this.fetchSize = fetchSize;
+        this.fetcher = fetcher;
+        this.onPromoted = onPromoted;
+        for (File parentDirectory : file.parentDirectories) {
+            partialFiles.add(new File(parentDirectory, file.fileName + PARTIAL_SUFFIX).toPath());
+        }
+        presentFile = partialFiles.get(0).resolveSibling(file.fileName + PARTIAL_SUFFIX + PRESENT_SUFFIX);
+        present = loadPresent();
+        for (Path partialFile : partialFiles) {
+            final FileChannel channel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() < length) {
+                channel.write(ByteBuffer.allocate(1), length - 1); //grows it sparsely, the missing parts take no space
+            }
+            channels.add(channel);
+        }
+    }
+
+    private RangeSet<Long> loadPresent() {
+        final RangeSet<Long> ret = TreeRangeSet.create();
+        try (InputStream stream = Files.newInputStream(presentFile);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            if (in.readInt() == MAGIC && in.readLong() == length) {
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    ret.add(Range.closedOpen(in.readLong(), in.readLong()));
+                }
+                LOGGER.info("continuing to restore {}, {} ranges are there already", file.fileName, count);
+                return ret;
+            }
+            LOGGER.warn("{} does not belong to this restore, starting over", presentFile);
+        } catch (NoSuchFileException e) {
+            LOGGER.info("starting to restore {} piece by piece", file.fileName);
+        } catch (IOException e) {
+            LOGGER.warn("unable to read {}, starting over", presentFile, e);
+        }
+        //whatever is in the partial files already, we can not tell if it is complete
+        return ret;
+    }
+
+    public List<File> partialFiles() {
+        final List<File> ret = new ArrayList<>();
+        for (Path partialFile : partialFiles) {
+            ret.add(partialFile.toFile());
+        }
+        return ret;
+    }
+
+    /**
+     * to be called by a bucket before it opens the partial files.
+     *
+     * @return false if the restore completed and the file got its real name meanwhile
+     */
+    public synchronized boolean open() {
+        if (promoted) {
+            return false;
+        }
+        users++;
+        return true;
+    }
+
+    /**
+     * to be called after the bucket closed its files. renames the file if it is complete now.
+     */
+    public void release() throws IOException {
+        synchronized (this) {
+            users--;
+        }
+        promoteIfComplete();
+    }
+
+    /**
+     * fetches whatever is missing in this range of the file, waits if others fetch it already.
+     */
+    public void ensurePresent(long offset, long length) throws IOException {
+        ensurePresent(offset, length, false);
+    }
+
+    private void ensurePresent(long offset, long length, boolean background) throws IOException {
+        final long end = Math.min(offset + length, this.length);
+        for (long pieceStart = offset - offset % fetchSize; pieceStart < end; pieceStart += fetchSize) {
+            final long pieceEnd = Math.min(pieceStart + fetchSize, this.length);
+            if (isPresent(pieceStart, pieceEnd)) {
+                continue;
+            }
+            final CompletableFuture<Void> mine = new CompletableFuture<>();
+            final CompletableFuture<Void> running = background ? fetching.get(pieceStart) : fetching.putIfAbsent(pieceStart, mine);
+            if (running != null) {
+                awaitFetch(running);
+                continue;
+            }
+            if (background) {
+                //not claimed, a slowed down fetch must not hold up whoever needs the piece meanwhile. they fetch it themselves
+                fetch(pieceStart, pieceEnd, true);
+                continue;
+            }
+            try {
+                fetch(pieceStart, pieceEnd, false);
+                mine.complete(null);
+            } catch (IOException | RuntimeException e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                fetching.remove(pieceStart);
+            }
+        }
+    }
+
+    private static void awaitFetch(CompletableFuture<Void> running) throws IOException {
+        try {
+            running.join();
+        } catch (CompletionException e) {
+            throw new IOException("unable to restore range", e.getCause());
+        }
+    }
+
+    private void fetch(long start, long end, boolean background) throws IOException {
+        final byte[] data = fetcher.fetch(start, Ints.checkedCast(end - start), background);
+        synchronized (this) {
+            //only what is still missing, the bucket may have written parts of it meanwhile or be writing them right now
+            final RangeSet<Long> missing = TreeRangeSet.create(present.complement().subRangeSet(Range.closedOpen(start, end)));
+            overwriting.forEach(missing::remove);
+            for (Range<Long> range : missing.asRanges()) {
+                for (FileChannel channel : channels) {
+                    final ByteBuffer slice = ByteBuffer.wrap(data, Ints.checkedCast(range.lowerEndpoint() - start), Ints.checkedCast(range.upperEndpoint() - range.lowerEndpoint()));
+                    long position = range.lowerEndpoint();
+                    while (slice.hasRemaining()) {
+                        position += channel.write(slice, position);
+                    }
+                }
+            }
+            present.addAll(missing);
+            dirty = true;
+        }
+    }
+
+    /**
+     * for ranges which are about to be overwritten completely there is no need to fetch anything, and a concurrent fetch
+     * must not put the older data over the new one. to be called before writing.
+     *
+     * @return to be passed to {@link #endOverwrite(Range, boolean)}
+     */
+    public synchronized Range<Long> beginOverwrite(long offset, long length) {
+        final Range<Long> range = Range.closedOpen(offset, Math.max(offset, Math.min(offset + length, this.length)));
+        overwriting.add(range);
+        return range;
+    }
+
+    /**
+     * @param written whether the new data got written. if not, the range is still missing
+     */
+    public synchronized void endOverwrite(Range<Long> range, boolean written) {
+        overwriting.remove(range);
+        if (written && !range.isEmpty()) {
+            present.add(range);
+            dirty = true;
+        }
+    }
+
+    public synchronized boolean isPresent(long offset, long end) {
+        return offset >= end || present.encloses(Range.closedOpen(offset, Math.min(end, length)));
+    }
+
+    public synchronized boolean isComplete() {
+        return isPresent(0, length);
+    }
+
+    /**
+     * fetches the first missing piece.
+     *
+     * @return whether there is anything left to fetch
+     */
+    public boolean backfillNext() throws IOException {
+        final Long firstMissing;
+        synchronized (this) {
+            final RangeSet<Long> missing = present.complement().subRangeSet(Range.closedOpen(0L, length));
+            firstMissing = missing.isEmpty() ? null : missing.asRanges().iterator().next().lowerEndpoint();
+        }
+        if (firstMissing == null) {
+            return false;
+        }
+        ensurePresent(firstMissing, 1, true);
+        return !isComplete();
+    }
+
+    /**
+     * persists which ranges are there. the fetched data reaches the disk first, it has to be there once we claim it is.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty || promoted) {
+            return;
+        }
+        for (FileChannel channel : channels) {
+            channel.force(false);
+        }
+        final Path temp = presentFile.resolveSibling(presentFile.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeLong(length);
+            out.writeInt(present.asRanges().size());
+            for (Range<Long> range : present.asRanges()) {
+                out.writeLong(range.lowerEndpoint());
+                out.writeLong(range.upperEndpoint());
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp, presentFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * @return whether the file has its real name now
+     */
+    public synchronized boolean promoteIfComplete() throws IOException {
+        if (promoted) {
+            return true;
+        }
+        if (users > 0 || !isComplete()) {
+            return false;
+        }
+        save();
+        for (FileChannel channel : channels) {
+            channel.force(true);
+            channel.close();
+        }
+        for (Path partialFile : partialFiles) {
+            final Path complete = partialFile.resolveSibling(file.fileName);
+            Files.move(partialFile, complete, StandardCopyOption.ATOMIC_MOVE);
+            //the allocation map of the bucket does not match the new name anymore, it is rebuilt from the file
+            Files.deleteIfExists(partialFile.resolveSibling(partialFile.getFileName() + ".alloc"));
+        }
+        Files.deleteIfExists(presentFile);
+        promoted = true;
+        LOGGER.info("{} is restored completely", file.fileName);
+        onPromoted.run();
+        return true;
+    }
+
+    @VisibleForTesting
+    synchronized int missingRanges() {
+        return present.complement().subRangeSet(Range.closedOpen(0L, length)).asRanges().size();
+    }
+}
@@ -0,0 +1,106 @@
+package io.minebox.nbd.download;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.minebox.sia.SiaFileUtil;
+
+/**
+ * the files still to be restored in the background, indexed by bucket number. the next one is the file closest to a recently
+ * requested bucket, found by looking at the neighbours of each of those requests. nothing is sorted again when requests arrive.
+ * without requests, the lowest bucket goes first.
+ */
+class RestoreQueue {
+
+    private final int maxRecentRequests;
+    private final TreeMap<Integer, Deque<RecoverableFile>> pending = new TreeMap<>(); //guarded by this
+    private final Deque<Integer> recentRequests = new ArrayDeque<>(); //guarded by this, most recent first
+    private int size = 0; //guarded by this
+
+    /**
+     * @param maxRecentRequests how many requested buckets are remembered, each one costs two lookups per {@link #next()}
+     */
+    RestoreQueue(Collection<RecoverableFile> files, int maxRecentRequests) {
+        this.maxRecentRequests = maxRecentRequests;
+        files.forEach(this::add);
+    }
+
+    private void add(RecoverableFile file) {
+        pending.computeIfAbsent(SiaFileUtil.fileToNumber(file.fileName), bucketNumber -> new ArrayDeque<>()).add(file);
+        size++;
+    }
+
+    /**
+     * somebody needs this file right now, it is downloaded on demand. the files around it are next in the background.
+     */
+    synchronized void requested(RecoverableFile file) {
+        final int bucketNumber = SiaFileUtil.fileToNumber(file.fileName);
+        final Deque<RecoverableFile> files = pending.get(bucketNumber);
+        if (files != null && files.remove(file)) {
+            size--;
+            if (files.isEmpty()) {
+                pending.remove(bucketNumber);
+            }
+        }
+        remember(bucketNumber);
+    }
+
+    /**
+     * somebody is using this file while it is restored piece by piece. it stays queued, so the rest of it is restored first.
+     */
+    synchronized void accessed(RecoverableFile file) {
+        remember(SiaFileUtil.fileToNumber(file.fileName));
+    }
+
+    private void remember(int bucketNumber) {
+        recentRequests.remove(bucketNumber);
+        recentRequests.addFirst(bucketNumber);
+        if (recentRequests.size() > maxRecentRequests) {
+            recentRequests.removeLast();
+        }
+    }
+
+    /**
+     * @return null if nothing is left
+     */
+    synchronized RecoverableFile next() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Integer, Deque<RecoverableFile>> closest = null;
+        long closestDistance = Long.MAX_VALUE;
+        for (Integer request : recentRequests) { //more recent requests win ties
+            final Map.Entry<Integer, Deque<RecoverableFile>> above = pending.ceilingEntry(request);
+            if (above != null && (long) above.getKey() - request < closestDistance) {
+                closest = above;
+                closestDistance = (long) above.getKey() - request;
+            }
+            final Map.Entry<Integer, Deque<RecoverableFile>> below = pending.lowerEntry(request);
+            if (below != null && (long) request - below.getKey() < closestDistance) {
+                closest = below;
+                closestDistance = (long) request - below.getKey();
+            }
+        }
+        if (closest == null) {
+            closest = pending.firstEntry();
+        }
+        final Deque<RecoverableFile> files = closest.getValue();
+        final RecoverableFile ret = files.removeFirst();
+        if (files.isEmpty()) {
+            pending.remove(closest.getKey());
+        }
+        size--;
+        return ret;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -1,5 +1,7 @@
 package io.minebox.nbd.download;
 
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.inject.Inject;
 import io.minebox.sia.SiaUtil;
 import org.slf4j.Logger;
@@ -7,20 +9,119 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class SiaHostedDownload implements DownloadService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SiaHostedDownload.class);
     private final SiaUtil siaUtil;
     private final Map<String, String> lookup;
+    private final long rangeSize; //0 if we only download whole files
+    private final Map<String, PartialRestore> partialRestores = new ConcurrentHashMap<>();
+    private volatile Map<String, Long> remoteSizes;
+    private final RateLimiter bandwidth; //null if unlimited, bytes per second
 
 
     @Inject
     SiaHostedDownload(SiaUtil siaUtil, Map<String, String> lookup) {
+        this(siaUtil, lookup, 0, 0);
+    }
+
+    /**
+     * @param bandwidth bytes per second, shared by every download of this instance. 0 for unlimited
+     */
+    SiaHostedDownload(SiaUtil siaUtil, Map<String, String> lookup, long rangeSize, long bandwidth) {
         this.siaUtil = siaUtil;
         this.lookup = lookup;
+        this.rangeSize = rangeSize;
+        this.bandwidth = bandwidth > 0 ? RateLimiter.create(bandwidth) : null;
+    }
+
+    /**
+     * waits until the bytes fit into the bandwidth. paid in pieces of a second each, so whoever comes next only waits for
+     * the last piece instead of the whole download.
+     */
+    private void throttle(long bytes) {
+        if (bandwidth == null) {
+            return;
+        }
+        final int piece = Math.max(1, Ints.saturatedCast((long) bandwidth.getRate()));
+        for (long remaining = bytes; remaining > 0; remaining -= piece) {
+            bandwidth.acquire(Ints.checkedCast(Math.min(piece, remaining)));
+        }
+    }
+
+    /**
+     * counts the bytes somebody waits for without ever waiting. if the bandwidth is in use already they are not counted,
+     * those go first.
+     */
+    private void charge(long bytes) {
+        if (bandwidth != null) {
+            bandwidth.tryAcquire(Ints.saturatedCast(bytes), 0, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public PartialRestore partialRestore(RecoverableFile file) {
+        final String siaPath = lookup.get(file.fileName);
+        if (rangeSize <= 0 || siaPath == null) {
+            return null;
+        }
+        for (File parentDirectory : file.parentDirectories) {
+            if (new File(parentDirectory, file.fileName).exists()) {
+                return null; //completed already
+            }
+        }
+        final Long remoteSize = remoteSizes().get(siaPath);
+        if (remoteSize == null) {
+            LOGGER.warn("size of {} is unknown, it has to be downloaded as a whole", siaPath);
+            return null;
+        }
+        try {
+            return partialRestores.computeIfAbsent(file.fileName, name -> newPartialRestore(file, siaPath, remoteSize));
+        } catch (UncheckedIOException e) {
+            LOGGER.warn("unable to restore {} piece by piece", file.fileName, e.getCause());
+            return null;
+        }
+    }
+
+    private PartialRestore newPartialRestore(RecoverableFile file, String siaPath, long remoteSize) {
+        try {
+            return new PartialRestore(file, remoteSize, rangeSize, (offset, length, background) -> {
+                if (background) {
+                    throttle(length);
+                } else {
+                    charge(length);
+                }
+                final byte[] bytes = siaUtil.downloadRange(siaPath, offset, length);
+                if (bytes == null) {
+                    throw new IOException("unable to download " + length + " bytes at " + offset + " of " + siaPath);
+                }
+                return bytes;
+            }, () -> partialRestores.remove(file.fileName));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Map<String, Long> remoteSizes() {
+        if (remoteSizes != null) {
+            return remoteSizes;
+        }
+        final Map<String, Long> sizes = siaUtil.fileSizes();
+        if (!sizes.isEmpty()) {
+            remoteSizes = sizes; //otherwise sia was not ready, we ask again next time
+        }
+        return sizes;
+    }
+
+    @Override
+    public boolean isRecoverable(RecoverableFile file) {
+        return lookup.containsKey(file.fileName);
     }
 
     @Override
@@ -30,9 +131,17 @@ public class SiaHostedDownload implements DownloadService {
             return RecoveryStatus.NO_FILE;
         }
         final File firstFile = new File(file.parentDirectories.get(0), file.fileName);
+        //sia writes the file itself, we can not pace it while it downloads. it is paid for before it starts instead
+        final Long remoteSize = bandwidth == null ? null : remoteSizes().get(siaPath);
+        if (remoteSize != null) {
+            throttle(remoteSize);
+        }
         final boolean download = siaUtil.download(siaPath, firstFile.toPath());
         copyFirstToOthers(file, firstFile);
         if (download) {
+            if (bandwidth != null && remoteSize == null) {
+                throttle(firstFile.length()); //the size was unknown, paid afterwards by this download still
+            }
             return RecoveryStatus.RECOVERED;
         }
         return RecoveryStatus.ERROR;
@@ -0,0 +1,84 @@
+package io.minebox.nbd.encryption;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import com.google.inject.Inject;
+import io.minebox.nbd.Encryption;
+
+/**
+ * AES in counter mode, which the JDK runs on AES-NI where available.
+ * The counter is the absolute offset in 16 byte AES blocks, so it starts at blockNumber * 256 for every 4k block
+ * and any sub range of the disk can be en/decrypted on its own.
+ */
+public class AesCtrEncryption implements Encryption {
+    private static final int AES_BLOCKSIZE = 16;
+    private static final byte[] SKIP_BYTES = new byte[AES_BLOCKSIZE];
+
+    private final EncyptionKeyProvider encyptionKeyProvider;
+    private volatile SecretKeySpec key;
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(AesCtrEncryption::newCipher);
+    private final ThreadLocal<byte[]> skipOutput = ThreadLocal.withInitial(() -> new byte[AES_BLOCKSIZE]);
+
+    @Inject
+    public AesCtrEncryption(EncyptionKeyProvider encyptionKeyProvider) {
+        this.encyptionKeyProvider = encyptionKeyProvider;
+    }
+
+    @Override
+    public ByteBuffer encrypt(long offset, ByteBuffer message) {
+        final ByteBuffer result = ByteBuffer.allocate(message.remaining());
+        encrypt(offset, message, result);
+        result.flip();
+        return result;
+    }
+
+    @Override
+    public void encrypt(long offset, ByteBuffer message, ByteBuffer target) {
+        final Cipher cipher = ciphers.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, getKey(), counterFor(offset));
+            final int skip = (int) (offset % AES_BLOCKSIZE);
+            if (skip > 0) {
+                //offset is in the middle of an AES block, throw away the keystream before it
+                cipher.update(SKIP_BYTES, 0, skip, skipOutput.get(), 0);
+            }
+            cipher.update(message, target);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("unable to encrypt at offset " + offset, e);
+        }
+    }
+
+    private static IvParameterSpec counterFor(long offset) {
+        final byte[] iv = new byte[AES_BLOCKSIZE];
+        System.arraycopy(Longs.toByteArray(offset / AES_BLOCKSIZE), 0, iv, 8, 8);
+        return new IvParameterSpec(iv);
+    }
+
+    private SecretKeySpec getKey() {
+        if (key == null) {
+            final byte[] keyBytes = Hashing.sha256().newHasher()
+                    .putString("minebox-aes-ctr:", Charsets.UTF_8)
+                    .putString(encyptionKeyProvider.getImmediatePassword(), Charsets.UTF_8)
+                    .hash()
+                    .asBytes();
+            key = new SecretKeySpec(keyBytes, "AES");
+        }
+        return key;
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/CTR is not available", e);
+        }
+    }
+}
@@ -14,15 +14,17 @@ import com.google.common.primitives.Longs;
  */
 public class BitPatternGenerator {
 
-    private final MessageDigest digest;
-
-    public BitPatternGenerator(String secret) {
-        secretKey = Hashing.sha256().newHasher().putString(secret, Charsets.UTF_8).hash().asBytes();
+    //MessageDigest is stateful, one per thread keeps pattern generation thread-safe
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
         try {
-            digest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+    });
+
+    public BitPatternGenerator(String secret) {
+        secretKey = Hashing.sha256().newHasher().putString(secret, Charsets.UTF_8).hash().asBytes();
     }
 
     private final byte[] secretKey;
@@ -88,8 +90,9 @@ public class BitPatternGenerator {
     }
 
     private byte[] digestHash(byte[] lastHash) {
+        final MessageDigest digest = this.digest.get();
         digest.update(lastHash);
-        final byte[] ret = this.digest.digest();
+        final byte[] ret = digest.digest();
         digest.reset();
         return ret;
     }
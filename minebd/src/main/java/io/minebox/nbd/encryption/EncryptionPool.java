@@ -0,0 +1,43 @@
+package io.minebox.nbd.encryption;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * the threads large requests are en/decrypted on, one pool for the whole process no matter how many encryptions exist.
+ * our own pool, the common one runs the async stages of completable futures and should not wait for us.
+ */
+@Singleton
+public class EncryptionPool {
+
+    private final ForkJoinPool pool;
+
+    @Inject
+    public EncryptionPool(@Named("encryptionThreads") Integer encryptionThreads) {
+        pool = new ForkJoinPool(encryptionThreads > 0 ? encryptionThreads : Runtime.getRuntime().availableProcessors(), forkJoinPool -> {
+            final ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            worker.setName("encryption-" + worker.getPoolIndex());
+            return worker;
+        }, null, false);
+    }
+
+    /**
+     * for encryptions which are not injected, using all cores
+     */
+    static EncryptionPool shared() {
+        return Shared.INSTANCE;
+    }
+
+    <T> T invoke(ForkJoinTask<T> task) {
+        return pool.invoke(task);
+    }
+
+    private static final class Shared {
+        private static final EncryptionPool INSTANCE = new EncryptionPool(0);
+    }
+}
@@ -1,8 +1,16 @@
 package io.minebox.nbd.encryption;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.RecursiveAction;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import io.dropwizard.util.Size;
 import io.minebox.nbd.Encryption;
 
 /**
@@ -10,45 +18,131 @@ import io.minebox.nbd.Encryption;
  */
 public class SymmetricEncryption implements Encryption {
     private final EncyptionKeyProvider encyptionKeyProvider;
-    private BitPatternGenerator bitPatternGenerator;
+    //requests of at least this many bytes get their block pads generated on several cores
+    private static final int PARALLEL_THRESHOLD = 16 * EncConstants.BLOCKSIZE;
+    private static final int PARALLEL_CHUNK = 4 * EncConstants.BLOCKSIZE;
+    private volatile BitPatternGenerator bitPatternGenerator;
+    //deriving a block pad costs 128 sha256 rounds, hot blocks like superblocks and tree roots are worth keeping around
+    private final LoadingCache<Long, byte[]> keystreamCache;
+    private final EncryptionPool encryptionPool;
 
     @Inject
-    public SymmetricEncryption(EncyptionKeyProvider encyptionKeyProvider) {
+    public SymmetricEncryption(EncyptionKeyProvider encyptionKeyProvider, MetricRegistry metrics,
+                               @Named("keystreamCacheSize") Size keystreamCacheSize, EncryptionPool encryptionPool) {
         this.encyptionKeyProvider = encyptionKeyProvider;
+        this.encryptionPool = encryptionPool;
+        keystreamCache = CacheBuilder.newBuilder()
+                .maximumWeight(keystreamCacheSize.toBytes())
+                .weigher((Long blockNumber, byte[] pad) -> pad.length)
+                .recordStats()
+                .build(new CacheLoader<Long, byte[]>() {
+                    @Override
+                    public byte[] load(Long blockNumber) {
+                        return generateBlockXor(blockNumber);
+                    }
+                });
+        metrics.gauge("keystreamCacheHits", () -> () -> keystreamCache.stats().hitCount());
+        metrics.gauge("keystreamCacheMisses", () -> () -> keystreamCache.stats().missCount());
+        metrics.gauge("keystreamCacheBlocks", () -> keystreamCache::size);
+    }
+
+    public SymmetricEncryption(EncyptionKeyProvider encyptionKeyProvider) {
+        this(encyptionKeyProvider, new MetricRegistry(), Size.megabytes(16), EncryptionPool.shared());
     }
 
     @Override
     public ByteBuffer encrypt(long offset, ByteBuffer message) {
-        return encrypt(offset, message.remaining(), message);
+        final ByteBuffer result = ByteBuffer.allocate(message.remaining());
+        encrypt(offset, message, result);
+        result.flip();
+        return result;
     }
 
+    @Override
+    public void encrypt(long offset, ByteBuffer message, ByteBuffer target) {
+        //work on absolute indices in native byte order, so the kernel can xor whole longs and stays usable in place
+        final ByteBuffer source = message.duplicate().order(ByteOrder.nativeOrder());
+        final ByteBuffer destination = target.duplicate().order(ByteOrder.nativeOrder());
+        final int length = message.remaining();
+        if (length >= PARALLEL_THRESHOLD) {
+            encryptionPool.invoke(new EncryptTask(offset, source, source.position(), destination, destination.position(), length));
+        } else {
+            encryptRange(offset, source, source.position(), destination, destination.position(), length);
+        }
+        message.position(message.position() + length);
+        target.position(target.position() + length);
+    }
 
-    private ByteBuffer encrypt(long offset, int msgSize, ByteBuffer plainBuffer) {
-        byte[] blockXor = new byte[0];
-        long curentBlockNumber = -1;
-        final ByteBuffer result = ByteBuffer.wrap(new byte[msgSize]);
+    private void encryptRange(long offset, ByteBuffer source, int sourceIndex, ByteBuffer destination, int destinationIndex, int length) {
+        int done = 0;
+        while (done < length) {
+            final long absolutePosition = offset + done;
+            final long blockNumber = absolutePosition / EncConstants.BLOCKSIZE;
+            final int xorBlockIndex = (int) (absolutePosition % EncConstants.BLOCKSIZE);
+            final int lengthInBlock = Math.min(length - done, EncConstants.BLOCKSIZE - xorBlockIndex);
+            final ByteBuffer blockXor = ByteBuffer.wrap(createBlockXor(blockNumber)).order(ByteOrder.nativeOrder());
+            xor(source, sourceIndex + done, destination, destinationIndex + done, blockXor, xorBlockIndex, lengthInBlock);
+            done += lengthInBlock;
+        }
+    }
 
-        while (plainBuffer.remaining() > 0) {
-            final int pos = plainBuffer.position();
+    /**
+     * splits a large request at block borders until the pieces are small enough to be en/decrypted on one core.
+     * the pieces only use absolute indices on the shared buffers, so they do not interfere with each other.
+     */
+    private class EncryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long offset;
+        private final ByteBuffer source;
+        private final int sourceIndex;
+        private final ByteBuffer destination;
+        private final int destinationIndex;
+        private final int length;
 
-            long blockNumber = (pos + offset) / EncConstants.BLOCKSIZE;
-            if (curentBlockNumber != blockNumber) {
-                blockXor = createBlockXor(blockNumber);
+        EncryptTask(long offset, ByteBuffer source, int sourceIndex, ByteBuffer destination, int destinationIndex, int length) {
+            this.offset = offset;
+            this.source = source;
+            this.sourceIndex = sourceIndex;
+            this.destination = destination;
+            this.destinationIndex = destinationIndex;
+            this.length = length;
+        }
+
+        @Override
+        protected void compute() {
+            if (length <= PARALLEL_CHUNK) {
+                encryptRange(offset, source, sourceIndex, destination, destinationIndex, length);
+                return;
             }
-            curentBlockNumber = blockNumber;
-            final byte value = plainBuffer.get();
-            final int xorBlockIndex = pos % EncConstants.BLOCKSIZE;
-            final byte encrypted = (byte) ((value ^ blockXor[xorBlockIndex]) & 0xFF);
-            result.put(encrypted);
+            final long middle = offset + length / 2;
+            final int split = (int) (middle - middle % EncConstants.BLOCKSIZE - offset);
+            invokeAll(new EncryptTask(offset, source, sourceIndex, destination, destinationIndex, split),
+                    new EncryptTask(offset + split, source, sourceIndex + split, destination, destinationIndex + split, length - split));
+        }
+    }
+
+    private static void xor(ByteBuffer source, int sourceIndex, ByteBuffer destination, int destinationIndex, ByteBuffer blockXor, int xorIndex, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            destination.putLong(destinationIndex + i, source.getLong(sourceIndex + i) ^ blockXor.getLong(xorIndex + i));
+        }
+        //tail which does not fill a whole long
+        for (; i < length; i++) {
+            destination.put(destinationIndex + i, (byte) (source.get(sourceIndex + i) ^ blockXor.get(xorIndex + i)));
         }
-        result.flip();
-        return result;
     }
 
     private byte[] createBlockXor(long blockNumber) {
-        if (bitPatternGenerator == null) {
-            bitPatternGenerator = new BitPatternGenerator(encyptionKeyProvider.getImmediatePassword());
+        return keystreamCache.getUnchecked(blockNumber);
+    }
+
+    private byte[] generateBlockXor(long blockNumber) {
+        BitPatternGenerator generator = bitPatternGenerator;
+        if (generator == null) {
+            //racing threads may build two equal generators, which is harmless
+            generator = new BitPatternGenerator(encyptionKeyProvider.getImmediatePassword());
+            bitPatternGenerator = generator;
         }
-        return bitPatternGenerator.createDeterministicPattern(blockNumber);
+        return generator.createDeterministicPattern(blockNumber);
     }
 }
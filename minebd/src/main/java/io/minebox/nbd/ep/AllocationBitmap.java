@@ -0,0 +1,184 @@
+package io.minebox.nbd.ep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import io.minebox.nbd.encryption.EncConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * remembers which 4K blocks of a bucket file may hold data. a block which is not allocated is known to read as zeroes.
+ * it is stored next to the .dat file, together with the size and modification time the file had when it was saved.
+ * if those do not match anymore (crash, restore from backup), every block within the file counts as allocated.
+ */
+class AllocationBitmap {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AllocationBitmap.class);
+    private static final int MAGIC = 0x4d424131; //MBA1
+    static final String SUFFIX = ".alloc";
+
+    private final BitSet allocated;
+    private final int blockCount;
+    private volatile boolean dirty = false;
+    private volatile long savedSize = -1; //the stamp of the sidecar on disk, if it matches the file
+    private volatile long savedModificationTime = -1;
+
+    private AllocationBitmap(BitSet allocated, int blockCount) {
+        this.allocated = allocated;
+        this.blockCount = blockCount;
+    }
+
+    static Path sidecarOf(Path datFile) {
+        return datFile.resolveSibling(datFile.getFileName() + SUFFIX);
+    }
+
+    static AllocationBitmap load(Path datFile, long bucketSize) throws IOException {
+        final int blockCount = blockCount(bucketSize);
+        final long datSize = Files.size(datFile);
+        final Path sidecar = sidecarOf(datFile);
+        try (InputStream stream = Files.newInputStream(sidecar);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+            if (in.readInt() == MAGIC
+                    && in.readLong() == datSize
+                    && in.readLong() == modificationTime(datFile)
+                    && in.readInt() == blockCount) {
+                final long[] words = new long[in.readInt()];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+                final AllocationBitmap ret = new AllocationBitmap(BitSet.valueOf(words), blockCount);
+                ret.savedSize = datSize;
+                ret.savedModificationTime = modificationTime(datFile);
+                return ret;
+            }
+            LOGGER.info("allocation bitmap {} does not match its file anymore, assuming all blocks are in use", sidecar);
+        } catch (NoSuchFileException e) {
+            LOGGER.debug("no allocation bitmap for {} yet", datFile);
+        } catch (IOException e) {
+            LOGGER.warn("unable to read allocation bitmap {}, assuming all blocks are in use", sidecar, e);
+        }
+        final BitSet allocated = new BitSet(blockCount);
+        allocated.set(0, Math.min(blockCount, blockCount(datSize)));
+        return new AllocationBitmap(allocated, blockCount);
+    }
+
+    /**
+     * to be called after the data of the file reached the disk, otherwise the bitmap could claim blocks to be empty which are not.
+     */
+    void saveIfDirty(Path datFile) throws IOException {
+        if (dirty) {
+            save(datFile);
+        }
+    }
+
+    /**
+     * like {@link #saveIfDirty(Path)}, but also if the file changed since the last save without any block changing its state.
+     * a bitmap stamped with an old size or modification time is not trusted anymore, this brings the stamp up to date.
+     */
+    void saveIfStale(Path datFile) throws IOException {
+        if (dirty || Files.size(datFile) != savedSize || modificationTime(datFile) != savedModificationTime) {
+            save(datFile);
+        }
+    }
+
+    private void save(Path datFile) throws IOException {
+        dirty = false;
+        //stamped before the blocks are copied. blocks are allocated before they are written, so whatever the stamp covers is in the copy
+        final long datSize = Files.size(datFile);
+        final long modificationTime = modificationTime(datFile);
+        final long[] words;
+        synchronized (this) {
+            words = allocated.toLongArray();
+        }
+        final Path sidecar = sidecarOf(datFile);
+        final Path temp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeLong(datSize);
+            out.writeLong(modificationTime);
+            out.writeInt(blockCount);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(sidecar.toAbsolutePath().getParent());
+        savedSize = datSize;
+        savedModificationTime = modificationTime;
+    }
+
+    /**
+     * makes the rename durable. a lost rename only leaves the older sidecar, which is either still right or does not match
+     * the file anymore, so this is best effort.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("unable to sync directory {}", directory, e);
+        }
+    }
+
+    synchronized boolean isAllocated(int block) {
+        return allocated.get(block);
+    }
+
+    /**
+     * @return the first block after block with a different state, at most toBlock
+     */
+    synchronized int runEnd(int block, int toBlock) {
+        final int end = allocated.get(block) ? allocated.nextClearBit(block) : allocated.nextSetBit(block);
+        return end < 0 ? toBlock : Math.min(end, toBlock);
+    }
+
+    synchronized void allocate(int block) {
+        if (!allocated.get(block)) {
+            allocated.set(block);
+            dirty = true;
+        }
+    }
+
+    synchronized void release(int fromBlock, int toBlock) {
+        if (fromBlock < toBlock && allocated.nextSetBit(fromBlock) >= 0 && allocated.nextSetBit(fromBlock) < toBlock) {
+            allocated.clear(fromBlock, toBlock);
+            dirty = true;
+        }
+    }
+
+    synchronized int allocatedBlocks() {
+        return allocated.cardinality();
+    }
+
+    int blockCount() {
+        return blockCount;
+    }
+
+    private static int blockCount(long size) {
+        return Math.toIntExact((size + EncConstants.BLOCKSIZE - 1) / EncConstants.BLOCKSIZE);
+    }
+
+    private static long modificationTime(Path datFile) throws IOException {
+        return Files.getLastModifiedTime(datFile).to(TimeUnit.MICROSECONDS);
+    }
+}
@@ -2,6 +2,7 @@ package io.minebox.nbd.ep;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Created by andreas on 24.04.17.
@@ -11,6 +12,11 @@ public interface Bucket {
 
     void trim(long offset, long length) throws IOException;
 
+    /**
+     * makes the range read back as zeroes. unless mayDeallocate is set, the space stays allocated.
+     */
+    void writeZeroes(long offset, long length, boolean mayDeallocate) throws IOException;
+
     long getBaseOffset();
 
     long getUpperBound();
@@ -24,4 +30,22 @@ public interface Bucket {
     long getBytes(ByteBuffer writeInto, long offsetForThisBucket, int length) throws IOException;
 
     long bucketIndex();
+
+    /**
+     * @return which parts of the range hold data and which read as zeroes, in order and covering exactly the range
+     */
+    List<Extent> extents(long offset, long length) throws IOException;
+
+    /**
+     * @return whether {@link #prepare(long, long, ExportProvider.Access)} has nothing to do for this range
+     */
+    default boolean isPrepared(long offset, long length, ExportProvider.Access access) {
+        return true;
+    }
+
+    /**
+     * gets what the access needs ready, for example by fetching it during a restore. may block, it runs on a loader thread.
+     */
+    default void prepare(long offset, long length, ExportProvider.Access access) throws IOException {
+    }
 }
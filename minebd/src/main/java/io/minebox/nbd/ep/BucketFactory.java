@@ -1,19 +1,23 @@
 package io.minebox.nbd.ep;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import io.minebox.config.MinebdConfig;
 import io.minebox.nbd.Encryption;
 import io.minebox.nbd.SerialNumberService;
 import io.minebox.nbd.download.DownloadService;
+import io.minebox.nbd.download.PartialRestore;
 import io.minebox.nbd.download.RecoverableFile;
+import io.minebox.nbd.encryption.AesCtrEncryption;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static io.minebox.nbd.download.RecoverableFile.from;
@@ -23,21 +27,32 @@ public class BucketFactory {
     private final SerialNumberService serialNumberService;
     private final List<String> parentDirs;
     private final long size;
-    private final Encryption encryption;
+    private final BucketFormat newBucketFormat;
+    private final Map<BucketFormat, Encryption> encryptions = new EnumMap<>(BucketFormat.class);
     private final Provider<DownloadService> downloadService;
     private List<File> parentFolders;
     private boolean parentFoldersCreated = false;
 
     @Inject
-    public BucketFactory(SerialNumberService serialNumberService, MinebdConfig config, Encryption encryption, Provider<DownloadService> downloadService) {
+    public BucketFactory(SerialNumberService serialNumberService, MinebdConfig config, Encryption encryption, AesCtrEncryption aesCtrEncryption, Provider<DownloadService> downloadService) {
+        this(serialNumberService, config, encryption, (Encryption) aesCtrEncryption, downloadService);
+    }
+
+    /**
+     * @param v2Encryption used for {@link BucketFormat#V2} buckets, encryption for the legacy ones
+     */
+    @VisibleForTesting
+    public BucketFactory(SerialNumberService serialNumberService, MinebdConfig config, Encryption encryption, Encryption v2Encryption, Provider<DownloadService> downloadService) {
         this.serialNumberService = serialNumberService;
         this.parentDirs = config.parentDirs;
         this.size = config.bucketSize.toBytes();
-        this.encryption = encryption;
+        this.newBucketFormat = config.bucketFormat;
+        encryptions.put(BucketFormat.V1, encryption);
+        encryptions.put(BucketFormat.V2, v2Encryption);
         this.downloadService = downloadService;
     }
 
-    private void createParentFolders() {
+    private synchronized void createParentFolders() { //buckets are loaded from several threads
         if (parentFoldersCreated) {
             return;
         }
@@ -50,45 +65,107 @@ public class BucketFactory {
 
     Bucket create(Integer bucketIndex) {
         createParentFolders();
-        final String fileName = "minebox_v1_" + bucketIndex + ".dat";
-        final RecoverableFile recoverableFile = from(fileName, serialNumberService.getPublicIdentifier(), parentDirs);
-//        recoverableFile.forEach(file -> ensureFileExists(bucketIndex, file));
-        ensureFileExists(bucketIndex, recoverableFile);
-        final List<Bucket> buckets = parentFolders.stream()
-                .map(parentFolder -> new SingleFileBucket(bucketIndex, size, encryption, new File(parentFolder, fileName)))
+        BucketFormat format = existingFormat(bucketIndex);
+        if (format == null) {
+            final Bucket partial = partialBucket(bucketIndex);
+            if (partial != null) {
+                return partial;
+            }
+            format = ensureFileExists(bucketIndex);
+        }
+        final String fileName = format.fileName(bucketIndex);
+        final List<File> files = parentFolders.stream()
+                .map(parentFolder -> new File(parentFolder, fileName))
                 .collect(Collectors.toList());
+        return new Raid1Buckets(singleFileBuckets(bucketIndex, format, files), bucketIndex);
+    }
 
-        return new Raid1Buckets(buckets, bucketIndex);
+    private List<Bucket> singleFileBuckets(Integer bucketIndex, BucketFormat format, List<File> files) {
+        final Encryption encryption = encryptions.get(format);
+        return files.stream()
+                .map(file -> new SingleFileBucket(bucketIndex, size, encryption, file))
+                .collect(Collectors.toList());
     }
 
-    private void ensureFileExists(Integer bucketIndex, RecoverableFile recoverableFile) {
-        boolean oneFileExists = false;
-        List<File> missingFiles = new ArrayList<>();
-        for (File parentDirectory : recoverableFile.parentDirectories) {
-            final File file1 = new File(parentDirectory, recoverableFile.fileName);
-            if (file1.exists()) {
-                oneFileExists = true;
-            } else {
-                missingFiles.add(file1);
+    private BucketFormat existingFormat(Integer bucketIndex) {
+        for (BucketFormat format : BucketFormat.values()) {
+            if (oneFileExists(recoverableFile(bucketIndex, format))) {
+                //todo repair files which are missing
+                //determine newest file
+                //copy file over to other destinations
+                return format;
             }
         }
+        return null;
+    }
 
-        if (oneFileExists) {
-            //todo repair files which are missing
-            //determine newest file
-            //copy file over to other destinations
-        } else {
-            DownloadService.RecoveryStatus wasDownloaded = downloadService.get().downloadIfPossible(recoverableFile);
+    /**
+     * @return a bucket which restores its file while it is used, null if the download service can not do that
+     */
+    private Bucket partialBucket(Integer bucketIndex) {
+        for (BucketFormat format : BucketFormat.values()) {
+            final PartialRestore partialRestore = downloadService.get().partialRestore(recoverableFile(bucketIndex, format));
+            if (partialRestore == null) {
+                continue;
+            }
+            if (!partialRestore.open()) {
+                return null; //completed just now, the file is there under its real name
+            }
+            try {
+                LOGGER.info("bucket {} is restored while in use", bucketIndex);
+                return new PartialBucket(new Raid1Buckets(singleFileBuckets(bucketIndex, format, partialRestore.partialFiles()), bucketIndex), partialRestore);
+            } catch (RuntimeException e) {
+                try {
+                    partialRestore.release();
+                } catch (IOException e1) {
+                    e.addSuppressed(e1);
+                }
+                throw e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the format of the file which exists now for this bucket. existing or recoverable files keep their format,
+     * only completely new buckets are created in the configured format.
+     */
+    private BucketFormat ensureFileExists(Integer bucketIndex) {
+        final BucketFormat existing = existingFormat(bucketIndex);
+        if (existing != null) {
+            return existing;
+        }
+        final DownloadService downloadService = this.downloadService.get();
+        for (BucketFormat format : BucketFormat.values()) {
+            final RecoverableFile recoverableFile = recoverableFile(bucketIndex, format);
+            if (!downloadService.isRecoverable(recoverableFile)) {
+                continue; //no trip through the restore queue, it would count as somebody asking for the file
+            }
+            DownloadService.RecoveryStatus wasDownloaded = downloadService.downloadIfPossible(recoverableFile);
             if (DownloadService.RecoveryStatus.ERROR.equals(wasDownloaded)) {
                 throw new RuntimeException("i was unable to obtain the expected file");
-            } else if (DownloadService.RecoveryStatus.NO_FILE.equals(wasDownloaded)) {
-                recoverableFile.forEach(this::createEmptyFile);
             } else if (DownloadService.RecoveryStatus.RECOVERED.equals(wasDownloaded)) {
                 LOGGER.info("bucket {} is now happy that we got the file {}", bucketIndex, recoverableFile.fileName);
-            } else {
+                return format;
+            } else if (!DownloadService.RecoveryStatus.NO_FILE.equals(wasDownloaded)) {
                 throw new IllegalStateException("unexpected recovery state:" + wasDownloaded);
             }
         }
+        recoverableFile(bucketIndex, newBucketFormat).forEach(this::createEmptyFile);
+        return newBucketFormat;
+    }
+
+    private RecoverableFile recoverableFile(Integer bucketIndex, BucketFormat format) {
+        return from(format.fileName(bucketIndex), serialNumberService.getPublicIdentifier(), parentDirs);
+    }
+
+    private static boolean oneFileExists(RecoverableFile recoverableFile) {
+        for (File parentDirectory : recoverableFile.parentDirectories) {
+            if (new File(parentDirectory, recoverableFile.fileName).exists()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void createEmptyFile(File file) {
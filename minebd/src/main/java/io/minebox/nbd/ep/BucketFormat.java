@@ -0,0 +1,25 @@
+package io.minebox.nbd.ep;
+
+/**
+ * on-disk format of a bucket file, encoded in its file name so existing files keep the scheme they were written with.
+ */
+public enum BucketFormat {
+    /**
+     * legacy buckets, encrypted with whatever {@link io.minebox.nbd.Encryption} is bound
+     */
+    V1("minebox_v1_"),
+    /**
+     * buckets encrypted with {@link io.minebox.nbd.encryption.AesCtrEncryption}
+     */
+    V2("minebox_v2_");
+
+    private final String filePrefix;
+
+    BucketFormat(String filePrefix) {
+        this.filePrefix = filePrefix;
+    }
+
+    public String fileName(int bucketIndex) {
+        return filePrefix + bucketIndex + ".dat";
+    }
+}
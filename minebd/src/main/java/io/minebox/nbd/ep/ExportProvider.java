@@ -2,6 +2,9 @@ package io.minebox.nbd.ep;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import com.google.inject.ImplementedBy;
 
@@ -10,14 +13,73 @@ public interface ExportProvider {
 
     long open(CharSequence exportName) throws IOException;
 
-    ByteBuffer read(long offset, int length) throws IOException;
+    default ByteBuffer read(long offset, int length) throws IOException {
+        final ByteBuffer readInto = ByteBuffer.allocate(length);
+        read(offset, readInto);
+        readInto.flip();
+        return readInto;
+    }
+
+    /**
+     * fills the remaining bytes of readInto with the data found at offset and advances its position.
+     */
+    void read(long offset, ByteBuffer readInto) throws IOException;
 
     void write(long offset, ByteBuffer message, boolean sync) throws IOException;
 
     void flush() throws IOException;
 
+    /**
+     * requests a flush without waiting for it. the returned future completes once everything written before this call is flushed.
+     */
+    default CompletableFuture<Void> flushInBackground() {
+        final CompletableFuture<Void> ret = new CompletableFuture<>();
+        try {
+            flush();
+            ret.complete(null);
+        } catch (IOException e) {
+            ret.completeExceptionally(e);
+        }
+        return ret;
+    }
+
     void trim(long offset, long length) throws IOException;
 
+    /**
+     * makes the range read back as zeroes without writing encrypted zeroes. unless mayDeallocate is set, the space stays allocated.
+     */
+    void writeZeroes(long offset, long length, boolean mayDeallocate, boolean sync) throws IOException;
+
+    /**
+     * @return which parts of the range hold data and which read as zeroes, in order and covering exactly the range
+     */
+    default List<Extent> extents(long offset, long length) throws IOException {
+        return Collections.singletonList(new Extent(length, true));
+    }
+
+    /**
+     * what a request is going to do with the range it prepares.
+     */
+    enum Access {
+        READ,
+        /**
+         * replaces the range, only blocks it covers partially are read
+         */
+        WRITE,
+        /**
+         * only asks which parts of the range hold data
+         */
+        EXTENTS
+    }
+
+    /**
+     * gets the data behind the range ready without blocking, for example by downloading it during a restore.
+     * the returned future completes once accessing the range does not have to wait anymore, or failed to get there.
+     */
+    default CompletableFuture<Void> prepare(long offset, long length, Access access) {
+        return CompletableFuture.completedFuture(null);
+    }
+
     default boolean supportsClientFlags(int clientFlags) {
         return true; //todo find out what those actually do
     }
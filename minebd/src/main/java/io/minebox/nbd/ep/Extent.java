@@ -0,0 +1,19 @@
+package io.minebox.nbd.ep;
+
+/**
+ * a range of the export which either may hold data or is known to read as zeroes.
+ */
+public class Extent {
+    public final long length;
+    public final boolean allocated;
+
+    public Extent(long length, boolean allocated) {
+        this.length = length;
+        this.allocated = allocated;
+    }
+
+    @Override
+    public String toString() {
+        return (allocated ? "data " : "hole ") + length;
+    }
+}
@@ -0,0 +1,77 @@
+package io.minebox.nbd.ep;
+
+import java.nio.file.Path;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * deallocates ranges of a file with fallocate(PUNCH_HOLE), so they read back as zeroes without taking up space.
+ * where this is not possible (no linux, filesystem without support) the callers have to write zeroes themselves.
+ */
+class HolePuncher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HolePuncher.class);
+    private static final int O_WRONLY = 1;
+    private static final int FALLOC_FL_KEEP_SIZE = 0x01;
+    private static final int FALLOC_FL_PUNCH_HOLE = 0x02;
+    private static final int ENOSYS = 38;
+    private static final int EOPNOTSUPP = 95;
+    private static final CLibrary LIBC = loadLibc();
+    private static volatile boolean supported = LIBC != null;
+
+    interface CLibrary extends Library {
+        int open(String path, int flags);
+
+        int fallocate(int fd, int mode, long offset, long length);
+
+        int close(int fd);
+    }
+
+    private static CLibrary loadLibc() {
+        try {
+            return (CLibrary) Native.loadLibrary("c", CLibrary.class);
+        } catch (Throwable e) {
+            LOGGER.info("unable to load libc, will write zeroes instead of punching holes", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the range is deallocated now, false if the caller has to write zeroes
+     */
+    static boolean punchHole(Path file, long offset, long length) {
+        if (!supported || length <= 0) {
+            return false;
+        }
+        try {
+            final int fd = LIBC.open(file.toString(), O_WRONLY);
+            if (fd < 0) {
+                LOGGER.warn("unable to open {} for punching holes, errno {}", file, Native.getLastError());
+                return false;
+            }
+            try {
+                if (LIBC.fallocate(fd, FALLOC_FL_PUNCH_HOLE | FALLOC_FL_KEEP_SIZE, offset, length) != 0) {
+                    final int errno = Native.getLastError();
+                    if (errno == EOPNOTSUPP || errno == ENOSYS) {
+                        LOGGER.info("punching holes not possible for {}, errno {}. will write zeroes from now on", file, errno);
+                        supported = false;
+                    } else {
+                        //anything else may be about this file or this moment only, the next range may work again
+                        LOGGER.warn("unable to punch a hole into {}, errno {}", file, errno);
+                    }
+                    return false;
+                }
+                return true;
+            } finally {
+                LIBC.close(fd);
+            }
+        } catch (UnsatisfiedLinkError e) {
+            LOGGER.info("fallocate not available, will write zeroes instead of punching holes", e);
+            supported = false;
+            return false;
+        }
+    }
+}
@@ -5,18 +5,23 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.IntStream;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import io.minebox.config.MinebdConfig;
@@ -31,7 +36,14 @@ public class MineboxExport implements ExportProvider {
     private final long bucketSize;//according to taek42 , 40 MB is the bucket size for contracts, so we use the same for efficientcy.
     private static final Logger logger = LoggerFactory.getLogger(MineboxExport.class);
     final private MinebdConfig config;
-    private final LoadingCache<Integer, Bucket> files;
+    private final OpenBuckets openBuckets;
+    private final Set<Integer> dirtyBuckets = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Integer, Integer> flushingBuckets = new ConcurrentHashMap<>();
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("bucketFlusher")
+            .setDaemon(true)
+            .build());
+    private final AtomicReference<CompletableFuture<Void>> pendingFlush = new AtomicReference<>();
     private Meter read;
     private Meter write;
     private final BucketFactory bucketFactory;
@@ -40,12 +52,13 @@ public class MineboxExport implements ExportProvider {
     @Inject
     public MineboxExport(MinebdConfig config, MetricRegistry metrics, BucketFactory bucketFactory) {
         this.config = config;
-        files = createFilesCache(config);
+        this.bucketFactory = bucketFactory;
+        openBuckets = createOpenBuckets(config);
         this.bucketSize = config.bucketSize.toBytes();
         read = metrics.meter("readBytes");
         write = metrics.meter("writeBytes");
-        this.bucketFactory = bucketFactory;
-        metrics.gauge("openfiles", () -> files::size);
+        metrics.gauge("openfiles", () -> openBuckets::openCount);
+        metrics.gauge("dirtyBuckets", () -> dirtyBuckets::size);
 
     }
 
@@ -53,27 +66,12 @@ public class MineboxExport implements ExportProvider {
         return bucketSize;
     }
 
-    private LoadingCache<Integer, Bucket> createFilesCache(final MinebdConfig config) {
+    private OpenBuckets createOpenBuckets(final MinebdConfig config) {
         Preconditions.checkNotNull(config.parentDirs);
         final Integer maxOpenFiles = config.maxOpenFiles;
         Preconditions.checkNotNull(maxOpenFiles);
-        Preconditions.checkArgument(maxOpenFiles > 0);
-        return CacheBuilder.newBuilder()
-                .maximumSize(maxOpenFiles)
-                .removalListener((RemovalListener<Integer, Bucket>) notification -> {
-                    logger.debug("no longer monitoring bucket {}", notification.getKey());
-                    try {
-                        notification.getValue().close();
-                    } catch (IOException e) {
-                        logger.warn("unable to flush and close file " + notification.getKey(), e);
-                    }
-                })
-                .build(new CacheLoader<Integer, Bucket>() {
-                    @Override
-                    public Bucket load(Integer key) throws Exception {
-                        return bucketFactory.create(key);
-                    }
-                });
+        //closing flushes, so an evicted bucket is clean once it is closed
+        return new OpenBuckets(maxOpenFiles, config.bucketLoadThreads, bucketFactory::create, dirtyBuckets::remove);
     }
 
     @Override
@@ -84,19 +82,22 @@ public class MineboxExport implements ExportProvider {
 
     //todo all lengths should be ints not longs
     @Override
-    public ByteBuffer read(final long offset, final int length) throws IOException {
+    public void read(final long offset, final ByteBuffer readInto) throws IOException {
+        final int length = readInto.remaining();
         read.mark(length);
-        final ByteBuffer origMessage = ByteBuffer.allocate(length);
+        final ByteBuffer origMessage = readInto.slice();
         for (Integer bucketIndex : getBuckets(offset, length)) { //eventually make parallel
-            Bucket bucket = getBucketFromIndex(bucketIndex);
-            final long absoluteOffsetForThisBucket = Math.max(offset, bucket.getBaseOffset());
-            final int lengthForBucket = Ints.checkedCast(Math.min(bucket.getUpperBound() + 1, offset + length) - absoluteOffsetForThisBucket); //todo this threw an exception
-            final int dataOffset = Ints.checkedCast(Math.max(0, bucket.getBaseOffset() - offset));
-            final ByteBuffer pseudoCopy = bufferForBucket(origMessage, lengthForBucket, dataOffset);
+            try (OpenBuckets.Handle handle = openBuckets.acquire(bucketIndex)) {
+                final Bucket bucket = handle.bucket();
+                final long absoluteOffsetForThisBucket = Math.max(offset, bucket.getBaseOffset());
+                final int lengthForBucket = Ints.checkedCast(Math.min(bucket.getUpperBound() + 1, offset + length) - absoluteOffsetForThisBucket); //todo this threw an exception
+                final int dataOffset = Ints.checkedCast(Math.max(0, bucket.getBaseOffset() - offset));
+                final ByteBuffer pseudoCopy = bufferForBucket(origMessage, lengthForBucket, dataOffset);
 
-            bucket.getBytes(pseudoCopy, absoluteOffsetForThisBucket, lengthForBucket);
+                bucket.getBytes(pseudoCopy, absoluteOffsetForThisBucket, lengthForBucket);
+            }
         }
-        return origMessage;
+        readInto.position(readInto.position() + length);
     }
 
     private int bucketFromOffset(long offset) {
@@ -109,8 +110,16 @@ public class MineboxExport implements ExportProvider {
         final int length = origMessage.remaining();
         write.mark(length);
         for (Integer bucketIndex : getBuckets(offset, length)) { //eventually make parallel
-            Bucket bucket = getBucketFromIndex(bucketIndex);
-            writeDataToBucket(bucket, offset, length, origMessage);
+            try (OpenBuckets.Handle handle = openBuckets.acquire(bucketIndex)) {
+                final Bucket bucket = handle.bucket();
+                writeDataToBucket(bucket, offset, length, origMessage);
+                if (sync) {
+                    //FUA, only the buckets we just touched need to reach the disk
+                    flushBucket(bucketIndex, bucket);
+                } else {
+                    dirtyBuckets.add(bucketIndex); //only after the write, so a concurrent flush can not miss it
+                }
+            }
         }
     }
 
@@ -130,23 +139,64 @@ public class MineboxExport implements ExportProvider {
         return pseudoCopy;
     }
 
-    private Bucket getBucketFromIndex(int bucketNumber) throws IOException {
-        Bucket bucket;
+    @Override
+    public void flush() throws IOException {
+        maybeBlock();
+        //buckets another connection is flushing right now count as dirty until that is done, only then our flush covers them
+        final Set<Integer> toFlush = new HashSet<>(dirtyBuckets);
+        toFlush.addAll(flushingBuckets.keySet());
+        logger.info("flushing {} dirty buckets", toFlush.size());
+        for (Integer bucketIndex : toFlush) {
+            openBuckets.awaitClosed(bucketIndex); //evicted buckets get flushed while being closed
+            try (OpenBuckets.Handle handle = openBuckets.acquireIfOpen(bucketIndex)) {
+                if (handle != null) {
+                    flushBucket(bucketIndex, handle.bucket());
+                }
+            }
+        }
+    }
+
+    private void flushBucket(Integer bucketIndex, Bucket bucket) throws IOException {
+        flushingBuckets.merge(bucketIndex, 1, Integer::sum); //before it leaves the dirty set, so concurrent flushes always see it
         try {
-            bucket = files.get(bucketNumber);
-        } catch (ExecutionException e) {
-            throw new IOException("unable to get bucket # " + bucketNumber, e);
+            dirtyBuckets.remove(bucketIndex); //before flushing, writes which happen meanwhile mark it again
+            bucket.flush();
+        } catch (IOException | RuntimeException e) {
+            dirtyBuckets.add(bucketIndex);
+            throw e;
+        } finally {
+            flushingBuckets.computeIfPresent(bucketIndex, (index, count) -> count == 1 ? null : count - 1);
         }
-        return bucket;
     }
 
     @Override
-    public void flush() throws IOException {
-        maybeBlock();
-        logger.info("flushing all open buckets");
-        for (Bucket bucket : files.asMap().values()) {
-            bucket.flush();
+    public CompletableFuture<Void> flushInBackground() {
+        final CompletableFuture<Void> flush = new CompletableFuture<>();
+        for (; ; ) {
+            final CompletableFuture<Void> pending = pendingFlush.get();
+            if (pending != null) {
+                return pending; //not started yet, so it will cover our writes as well
+            }
+            if (pendingFlush.compareAndSet(null, flush)) {
+                break;
+            }
         }
+        flusher.execute(() -> {
+            pendingFlush.compareAndSet(flush, null);
+            try {
+                flush();
+                flush.complete(null);
+            } catch (Exception e) {
+                logger.warn("background flush failed", e);
+                flush.completeExceptionally(e);
+            }
+        });
+        return flush;
+    }
+
+    @VisibleForTesting
+    public int dirtyBucketCount() {
+        return dirtyBuckets.size();
     }
 
     private void maybeBlock() {
@@ -168,13 +218,68 @@ public class MineboxExport implements ExportProvider {
     public void trim(long offset, long length) throws IOException {
         logger.debug("trimming {} bytes from offset {} to bucket", length, offset);
         for (Integer bucketNumber : getBuckets(offset, length)) {
-            final Bucket bucket = getBucketFromIndex(bucketNumber);
-            final long start = Math.max(offset, bucket.getBaseOffset());
-            final long lengthForBucket = Math.min(bucket.getUpperBound() + 1, offset + length) - start;
-            bucket.trim(start, lengthForBucket);
+            try (OpenBuckets.Handle handle = openBuckets.acquire(bucketNumber)) {
+                final Bucket bucket = handle.bucket();
+                final long start = Math.max(offset, bucket.getBaseOffset());
+                final long lengthForBucket = Math.min(bucket.getUpperBound() + 1, offset + length) - start;
+                bucket.trim(start, lengthForBucket);
+                dirtyBuckets.add(bucketNumber);
+            }
+        }
+    }
+
+
+    @Override
+    public void writeZeroes(long offset, long length, boolean mayDeallocate, boolean sync) throws IOException {
+        logger.debug("zeroing {} bytes from offset {}", length, offset);
+        for (Integer bucketNumber : getBuckets(offset, length)) {
+            try (OpenBuckets.Handle handle = openBuckets.acquire(bucketNumber)) {
+                final Bucket bucket = handle.bucket();
+                final long start = Math.max(offset, bucket.getBaseOffset());
+                final long lengthForBucket = Math.min(bucket.getUpperBound() + 1, offset + length) - start;
+                bucket.writeZeroes(start, lengthForBucket, mayDeallocate);
+                if (sync) {
+                    flushBucket(bucketNumber, bucket);
+                } else {
+                    dirtyBuckets.add(bucketNumber);
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<Extent> extents(long offset, long length) throws IOException {
+        final List<Extent> extents = new ArrayList<>();
+        for (Integer bucketNumber : getBuckets(offset, length)) {
+            final List<Extent> bucketExtents;
+            try (OpenBuckets.Handle handle = openBuckets.acquire(bucketNumber)) {
+                final Bucket bucket = handle.bucket();
+                final long start = Math.max(offset, bucket.getBaseOffset());
+                final long lengthForBucket = Math.min(bucket.getUpperBound() + 1, offset + length) - start;
+                bucketExtents = bucket.extents(start, lengthForBucket);
+            }
+            for (Extent extent : bucketExtents) {
+                final int last = extents.size() - 1;
+                if (last >= 0 && extents.get(last).allocated == extent.allocated) {
+                    extents.set(last, new Extent(extents.get(last).length + extent.length, extent.allocated));
+                } else {
+                    extents.add(extent);
+                }
+            }
         }
+        return extents;
     }
 
+    @Override
+    public CompletableFuture<Void> prepare(long offset, long length, Access access) {
+        return CompletableFuture.allOf(getBucketsStream(offset, length)
+                .mapToObj(bucketIndex -> {
+                    final long start = Math.max(offset, bucketIndex * bucketSize);
+                    final long lengthForBucket = Math.min((bucketIndex + 1) * bucketSize, offset + length) - start;
+                    return openBuckets.whenPrepared(bucketIndex, start, lengthForBucket, access);
+                })
+                .toArray(CompletableFuture[]::new));
+    }
 
     private List<Integer> getBuckets(long offset, long length) {
         final IntStream intStream = getBucketsStream(offset, length);
@@ -195,9 +300,8 @@ public class MineboxExport implements ExportProvider {
 
     @Override
     public void close() throws IOException {
-        for (Bucket bucket : files.asMap().values()) {
-            bucket.close();
-        }
+        flusher.shutdown();
+        openBuckets.close();
     }
 
     public Instant blockFlushFor1500Millis() {
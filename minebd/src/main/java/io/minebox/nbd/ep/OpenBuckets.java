@@ -0,0 +1,354 @@
+package io.minebox.nbd.ep;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * the buckets currently holding open files. every access takes a {@link Handle}, a bucket is only closed once nobody holds one.
+ * when more than maxOpen buckets are open, the least recently used idle ones are closed on a background thread,
+ * so the request which caused the eviction does not pay for its flush.
+ * opening a bucket which is still being closed waits for that close, two instances never work on the same files.
+ * buckets are loaded on their own threads, since loading one may mean downloading it first. {@link #whenOpen(int)} lets
+ * callers wait for that without blocking.
+ */
+class OpenBuckets {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenBuckets.class);
+
+    interface BucketLoader {
+        Bucket load(int bucketIndex) throws IOException;
+    }
+
+    private final int maxOpen;
+    private final BucketLoader loader;
+    private final IntConsumer onClosed;
+    //one lock per bucket, slots are tiny and never removed. a map instead of an array, bucket sizes in tests go down to a few bytes
+    private final ConcurrentHashMap<Integer, Slot> slots = new ConcurrentHashMap<>();
+    private final Set<Slot> open = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger openCount = new AtomicInteger(0);
+    private final AtomicLong clock = new AtomicLong(0);
+    private final ExecutorService loaders;
+    private final ExecutorService closer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("bucketCloser")
+            .setDaemon(true)
+            .build());
+
+    /**
+     * @param onClosed called after a bucket was flushed and closed, before it can be opened again
+     */
+    OpenBuckets(int maxOpen, int loaderThreads, BucketLoader loader, IntConsumer onClosed) {
+        Preconditions.checkArgument(maxOpen > 0);
+        this.maxOpen = maxOpen;
+        this.loader = loader;
+        this.onClosed = onClosed;
+        loaders = Executors.newFixedThreadPool(loaderThreads, new ThreadFactoryBuilder()
+                .setNameFormat("bucketLoader-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    Handle acquire(int bucketIndex) throws IOException {
+        final Slot slot = slots.computeIfAbsent(bucketIndex, Slot::new);
+        Handle handle = null;
+        while (handle == null) {
+            try {
+                whenOpen(bucketIndex).join();
+            } catch (CompletionException e) {
+                throw new IOException("unable to get bucket # " + bucketIndex, e.getCause());
+            }
+            synchronized (slot) {
+                if (slot.bucket != null) { //otherwise it got evicted again right away, very unlikely
+                    handle = slot.retain(clock.incrementAndGet());
+                }
+            }
+        }
+        evictIfNeeded(); //outside of our own lock, eviction takes the locks of other slots
+        return handle;
+    }
+
+    /**
+     * starts loading the bucket unless it is open or loading already.
+     *
+     * @return completes once the bucket is open, exceptionally if loading it failed
+     */
+    CompletableFuture<Void> whenOpen(int bucketIndex) {
+        final Slot slot = slots.computeIfAbsent(bucketIndex, Slot::new);
+        final CompletableFuture<Void> loading;
+        final CompletableFuture<Void> previousClose;
+        synchronized (slot) {
+            if (slot.bucket != null) {
+                slot.lastUsed = clock.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+            if (slot.loading != null) {
+                return slot.loading;
+            }
+            loading = new CompletableFuture<>();
+            slot.loading = loading;
+            previousClose = slot.closing == null ? CompletableFuture.completedFuture(null) : slot.closing;
+        }
+        //chained outside of the lock, the callbacks may run right here and take it themselves
+        previousClose.handle((ignored, closeFailure) -> null) //a failed close stays around for flush to report it
+                .thenApplyAsync(ignored -> load(bucketIndex), loaders)
+                .whenComplete((bucket, e) -> loaded(slot, bucket, e, loading));
+        return loading;
+    }
+
+    /**
+     * like {@link #whenOpen(int)}, then lets the bucket get the range ready. if it has anything to do for that, it does so
+     * on a loader thread, just like loading it.
+     */
+    CompletableFuture<Void> whenPrepared(int bucketIndex, long offset, long length, ExportProvider.Access access) {
+        return whenOpen(bucketIndex).thenCompose(ignored -> {
+            final Handle handle = acquireIfOpen(bucketIndex);
+            if (handle == null) {
+                return whenPrepared(bucketIndex, offset, length, access); //it got evicted again right away, very unlikely
+            }
+            if (handle.bucket().isPrepared(offset, length, access)) {
+                handle.close();
+                return CompletableFuture.completedFuture(null);
+            }
+            try {
+                return CompletableFuture.runAsync(() -> {
+                    try (Handle held = handle) { //so it is not closed while we prepare it
+                        held.bucket().prepare(offset, length, access);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, loaders);
+            } catch (RejectedExecutionException e) {
+                handle.close();
+                throw e;
+            }
+        });
+    }
+
+    private Bucket load(int bucketIndex) {
+        try {
+            return loader.load(bucketIndex);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void loaded(Slot slot, Bucket bucket, Throwable failure, CompletableFuture<Void> loading) {
+        synchronized (slot) {
+            slot.loading = null;
+            if (failure == null) {
+                if (slot.closing != null && slot.closing.isDone() && !slot.closing.isCompletedExceptionally()) {
+                    slot.closing = null;
+                }
+                slot.bucket = bucket;
+                slot.lastUsed = clock.incrementAndGet();
+                open.add(slot);
+                openCount.incrementAndGet();
+            }
+        }
+        if (failure == null) {
+            //no eviction here, that would pick this bucket before the one waiting for it got a handle. the next acquire evicts
+            loading.complete(null);
+        } else {
+            final Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            LOGGER.warn("unable to load bucket " + slot.bucketIndex, cause);
+            loading.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return null if the bucket is not open right now
+     */
+    Handle acquireIfOpen(int bucketIndex) {
+        final Slot slot = slots.get(bucketIndex);
+        if (slot == null) {
+            return null;
+        }
+        synchronized (slot) {
+            return slot.bucket == null ? null : slot.retain(slot.lastUsed);
+        }
+    }
+
+    /**
+     * waits until a close of this bucket which is in progress has finished. a failed close is reported once.
+     */
+    void awaitClosed(int bucketIndex) throws IOException {
+        final Slot slot = slots.get(bucketIndex);
+        if (slot != null) {
+            synchronized (slot) {
+                awaitClose(slot);
+            }
+        }
+    }
+
+    private static void awaitClose(Slot slot) throws IOException {
+        final CompletableFuture<Void> closing = slot.closing;
+        if (closing == null) {
+            return;
+        }
+        try {
+            closing.join();
+            slot.closing = null;
+        } catch (CompletionException e) {
+            slot.closing = null;
+            throw new IOException("unable to flush and close bucket " + slot.bucketIndex, e.getCause());
+        }
+    }
+
+    int openCount() {
+        return openCount.get();
+    }
+
+    private void evictIfNeeded() {
+        while (openCount.get() > maxOpen) {
+            final Slot victim = leastRecentlyUsedIdle();
+            if (victim == null) {
+                return; //everything is in use, we close once the handles are given back
+            }
+            synchronized (victim) {
+                if (victim.bucket == null || victim.refs > 0) {
+                    continue; //somebody was faster, look again
+                }
+                final Bucket bucket = victim.bucket;
+                victim.bucket = null;
+                open.remove(victim);
+                openCount.decrementAndGet();
+                LOGGER.debug("no longer monitoring bucket {}", victim.bucketIndex);
+                final CompletableFuture<Void> closing = new CompletableFuture<>();
+                victim.closing = closing;
+                closer.execute(() -> closeBucket(victim.bucketIndex, bucket, closing));
+            }
+        }
+    }
+
+    private Slot leastRecentlyUsedIdle() {
+        Slot oldest = null;
+        for (Slot slot : open) {
+            if (slot.refs == 0 && (oldest == null || slot.lastUsed < oldest.lastUsed)) {
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private void closeBucket(int bucketIndex, Bucket bucket, CompletableFuture<Void> closing) {
+        try {
+            bucket.close();
+            onClosed.accept(bucketIndex);
+            closing.complete(null);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("unable to flush and close file " + bucketIndex, e);
+            closing.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * closes all buckets, the ones in use as well.
+     */
+    void close() throws IOException {
+        final List<IOException> failures = new ArrayList<>();
+        loaders.shutdown();
+        try {
+            loaders.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Slot slot : slots.values()) {
+            synchronized (slot) {
+                try {
+                    awaitClose(slot);
+                } catch (IOException e) {
+                    failures.add(e);
+                }
+                if (slot.bucket != null) {
+                    try {
+                        slot.bucket.close();
+                    } catch (IOException e) {
+                        failures.add(e);
+                    }
+                    slot.bucket = null;
+                    open.remove(slot);
+                    openCount.decrementAndGet();
+                }
+            }
+        }
+        closer.shutdown();
+        try {
+            closer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!failures.isEmpty()) {
+            final IOException first = failures.get(0);
+            failures.stream().skip(1).forEach(first::addSuppressed);
+            throw first;
+        }
+    }
+
+    private final class Slot {
+        private final int bucketIndex;
+        private Bucket bucket; //guarded by this
+        private CompletableFuture<Void> closing; //guarded by this, set while the previous instance is closed in the background
+        private CompletableFuture<Void> loading; //guarded by this, set while the bucket is loaded
+        private volatile int refs;
+        private volatile long lastUsed;
+
+        Slot(int bucketIndex) {
+            this.bucketIndex = bucketIndex;
+        }
+
+        private Handle retain(long now) {
+            refs++;
+            lastUsed = now;
+            return new Handle(this, bucket);
+        }
+
+        private void release() {
+            synchronized (this) {
+                refs--;
+            }
+            evictIfNeeded(); //we may have blocked an eviction while we held on to it
+        }
+    }
+
+    /**
+     * keeps a bucket open while it is used.
+     */
+    final class Handle implements AutoCloseable {
+        private final Slot slot;
+        private final Bucket bucket;
+        private boolean released = false;
+
+        private Handle(Slot slot, Bucket bucket) {
+            this.slot = slot;
+            this.bucket = bucket;
+        }
+
+        Bucket bucket() {
+            return bucket;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                slot.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package io.minebox.nbd.ep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.Range;
+import io.minebox.nbd.download.PartialRestore;
+import io.minebox.nbd.encryption.EncConstants;
+
+/**
+ * a bucket whose file is still being restored. before anything is read, the ranges it touches are fetched.
+ * ranges which get overwritten completely are not fetched at all. requests get that done by {@link #prepare}, so they wait
+ * for the fetch without holding a disk thread.
+ */
+class PartialBucket implements Bucket {
+
+    private final Bucket delegate;
+    private final PartialRestore partialRestore;
+
+    PartialBucket(Bucket delegate, PartialRestore partialRestore) {
+        this.delegate = delegate;
+        this.partialRestore = partialRestore;
+    }
+
+    private interface Overwrite<T> {
+        T run() throws IOException;
+    }
+
+    @Override
+    public long putBytes(long offset, ByteBuffer message) throws IOException {
+        return overwrite(offset, message.remaining(), () -> delegate.putBytes(offset, message));
+    }
+
+    @Override
+    public void trim(long offset, long length) throws IOException {
+        overwrite(offset, length, () -> {
+            delegate.trim(offset, length);
+            return null;
+        });
+    }
+
+    @Override
+    public void writeZeroes(long offset, long length, boolean mayDeallocate) throws IOException {
+        overwrite(offset, length, () -> {
+            delegate.writeZeroes(offset, length, mayDeallocate);
+            return null;
+        });
+    }
+
+    private <T> T overwrite(long offset, long length, Overwrite<T> write) throws IOException {
+        final long start = offset - getBaseOffset();
+        final long end = start + length;
+        //present already if the request was prepared, only others like the startup read fetch here
+        ensureEdgesPresent(start, end);
+        final Range<Long> range = partialRestore.beginOverwrite(start, length);
+        boolean written = false;
+        try {
+            final T ret = write.run();
+            written = true;
+            return ret;
+        } finally {
+            partialRestore.endOverwrite(range, written);
+        }
+    }
+
+    /**
+     * blocks which are only partly overwritten are decrypted and encrypted again, those have to be there
+     */
+    private void ensureEdgesPresent(long start, long end) throws IOException {
+        if (!isEdgePresent(start)) {
+            partialRestore.ensurePresent(start, 1);
+        }
+        if (!isEdgePresent(end)) {
+            partialRestore.ensurePresent(end - 1, 1);
+        }
+    }
+
+    /**
+     * @return whether the block at this border of a write is either not touched partially or there
+     */
+    private boolean isEdgePresent(long border) {
+        final long blockStart = border - border % EncConstants.BLOCKSIZE;
+        return blockStart == border || partialRestore.isPresent(blockStart, blockStart + EncConstants.BLOCKSIZE);
+    }
+
+    @Override
+    public boolean isPrepared(long offset, long length, ExportProvider.Access access) {
+        final long start = offset - getBaseOffset();
+        switch (access) {
+            case READ:
+                return partialRestore.isPresent(start, start + length);
+            case WRITE:
+                return isEdgePresent(start) && isEdgePresent(start + length);
+            default:
+                return true; //ranges which are missing count as data, there is nothing to fetch
+        }
+    }
+
+    @Override
+    public void prepare(long offset, long length, ExportProvider.Access access) throws IOException {
+        final long start = offset - getBaseOffset();
+        switch (access) {
+            case READ:
+                partialRestore.ensurePresent(start, length);
+                break;
+            case WRITE:
+                ensureEdgesPresent(start, start + length);
+                break;
+            default:
+        }
+    }
+
+    @Override
+    public long getBytes(ByteBuffer writeInto, long offsetForThisBucket, int length) throws IOException {
+        //present already if the request was prepared, only others like the startup read fetch here
+        partialRestore.ensurePresent(offsetForThisBucket - getBaseOffset(), length);
+        return delegate.getBytes(writeInto, offsetForThisBucket, length);
+    }
+
+    @Override
+    public List<Extent> extents(long offset, long length) throws IOException {
+        return delegate.extents(offset, length); //ranges which are missing still count as data, that is never wrong
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+        partialRestore.save(); //only after our writes are on disk, otherwise a restart could fetch the old data over them
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delegate.close();
+            partialRestore.save();
+        } finally {
+            partialRestore.release();
+        }
+    }
+
+    @Override
+    public long getBaseOffset() {
+        return delegate.getBaseOffset();
+    }
+
+    @Override
+    public long getUpperBound() {
+        return delegate.getUpperBound();
+    }
+
+    @Override
+    public long calcLengthInThisBucket(long offsetInThisBucket, long length) {
+        return delegate.calcLengthInThisBucket(offsetInThisBucket, length);
+    }
+
+    @Override
+    public long bucketIndex() {
+        return delegate.bucketIndex();
+    }
+}
@@ -38,6 +38,13 @@ public class Raid1Buckets implements Bucket {
         }
     }
 
+    @Override
+    public void writeZeroes(long offset, long length, boolean mayDeallocate) throws IOException {
+        for (Bucket bucket : buckets) {
+            bucket.writeZeroes(offset, length, mayDeallocate);
+        }
+    }
+
     @Override
     public long getBaseOffset() {
         return getDominantBucket().getBaseOffset();
@@ -71,6 +78,11 @@ public class Raid1Buckets implements Bucket {
         return getDominantBucket().getBytes(writeInto, offsetForThisBucket, length);
     }
 
+    @Override
+    public List<Extent> extents(long offset, long length) throws IOException {
+        return getDominantBucket().extents(offset, length);
+    }
+
     @Override
     public long bucketIndex() {
         return bucketIndex;
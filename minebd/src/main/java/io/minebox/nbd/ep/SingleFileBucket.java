@@ -4,6 +4,9 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
 import io.minebox.nbd.Encryption;
+import io.minebox.nbd.encryption.EncConstants;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,12 +20,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 class SingleFileBucket implements Bucket {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SingleFileBucket.class);
+    private static final ByteBuffer ZEROES = ByteBuffer.allocateDirect(EncConstants.BLOCKSIZE).asReadOnlyBuffer();
     private final File file;
-    private FileChannel channel;
+    private volatile FileChannel channel;
     private final long baseOffset;
     /**
      * highest valid offset, given minimum length of 1
@@ -31,11 +38,11 @@ class SingleFileBucket implements Bucket {
     private final long bucketNumber;
     private final long bucketSize;
     private final Path filePath;
-    private volatile boolean fileWasZero;
-    //right now we try to keep track of the empty ranges but dont use them anywhere. there is a big optimisation opportunity here to minimize the amount of
+    private final AllocationBitmap allocation;
     private RandomAccessFile randomAccessFile;
     private volatile boolean needsFlush = false;
     private volatile boolean wantsTimestampUpdate = false;
+    private final Object partialBlockLock = new Object();
 
     private final Encryption encryption;
     private volatile FileTime lastModifiedTime;
@@ -50,8 +57,7 @@ class SingleFileBucket implements Bucket {
         this.file = file;
         try {
             filePath = file.toPath();
-            final long existingFileSize = Files.size(filePath);
-            this.fileWasZero = existingFileSize == 0;
+            allocation = AllocationBitmap.load(filePath, bucketSize);
             lastModifiedTime = Files.getLastModifiedTime(filePath);
         } catch (IOException e) {
             throw new IllegalStateException(e);
@@ -63,6 +69,8 @@ class SingleFileBucket implements Bucket {
         final FileChannel openChannel = getOpenChannel();
         if (openChannel.isOpen()) {
             flush();
+            //writes which changed no block still changed the file, the stamp has to match it again for the next open
+            allocation.saveIfStale(filePath);
             openChannel.close();
         } else {
             LOGGER.warn("closing bucket {} without an open channel.", bucketNumber);
@@ -72,32 +80,118 @@ class SingleFileBucket implements Bucket {
 
     public long getBytes(ByteBuffer readInto, long offset, int length) throws IOException {
         final long offsetInThisBucket = offsetInThisBucket(offset);
-        final long lengthInThisBucket = calcLengthInThisBucket(offsetInThisBucket, length);
-        final int read;
-        ByteBuffer encrypted = ByteBuffer.allocate(length);
-        synchronized (this) {
-            final FileChannel openChannel = getOpenChannel();
-            openChannel.position(offsetInThisBucket);
-            read = openChannel.read(encrypted);
-            if (read > 0) {
-                encrypted.flip();
-                encrypted.limit(read);
-                final ByteBuffer decrypted = encryption.encrypt(offset, encrypted);
-                readInto.put(decrypted);
+        final int lengthInThisBucket = Ints.checkedCast(calcLengthInThisBucket(offsetInThisBucket, length));
+        final long alignedStart = blockStart(offsetInThisBucket);
+        final long alignedEnd = blockEnd(offsetInThisBucket + lengthInThisBucket - 1);
+        final ByteBuffer target = readInto.duplicate();
+        target.limit(target.position() + lengthInThisBucket);
+        if (alignedStart == offsetInThisBucket && alignedEnd == offsetInThisBucket + lengthInThisBucket) {
+            //read the ciphertext straight into the destination and decrypt it there, no intermediate buffers needed
+            readRange(alignedStart, target);
+        } else {
+            //whether a block is stored as plain zeroes can only be told by looking at all of it
+            final int alignedLength = Ints.checkedCast(alignedEnd - alignedStart);
+            final ByteBuf blocksBuf = PooledByteBufAllocator.DEFAULT.directBuffer(alignedLength);
+            try {
+                final ByteBuffer blocks = blocksBuf.nioBuffer(0, alignedLength);
+                readRange(alignedStart, blocks);
+                blocks.position(Ints.checkedCast(offsetInThisBucket - alignedStart));
+                blocks.limit(blocks.position() + lengthInThisBucket);
+                target.put(blocks);
+            } finally {
+                blocksBuf.release();
             }
         }
-        if (read != lengthInThisBucket) {
-            final byte[] zeroes;
-            if (read == -1) {
-                zeroes = new byte[(int) lengthInThisBucket];
+        readInto.position(readInto.position() + lengthInThisBucket);
+        return lengthInThisBucket;
+    }
+
+    /**
+     * fills the remaining bytes of target with the plaintext of the blocks starting at the block aligned offsetInThisBucket.
+     * unallocated blocks are zeroes, without looking at the file at all.
+     */
+    private void readRange(long offsetInThisBucket, ByteBuffer target) throws IOException {
+        long position = offsetInThisBucket;
+        while (target.hasRemaining()) {
+            final int block = blockIndex(position);
+            final int runEnd = allocation.runEnd(block, allocation.blockCount());
+            final long runEndOffset = Math.min((long) runEnd * EncConstants.BLOCKSIZE, position + target.remaining());
+            final ByteBuffer run = target.duplicate();
+            run.limit(run.position() + Ints.checkedCast(runEndOffset - position));
+            if (allocation.isAllocated(block)) {
+                readBlocks(position, run);
             } else {
-                zeroes = new byte[(int) (lengthInThisBucket - read)];
+                putZeroes(run);
+            }
+            target.position(run.position());
+            position = runEndOffset;
+        }
+    }
+
+    /**
+     * fills the remaining bytes of target with the plaintext of the blocks starting at the block aligned offsetInThisBucket.
+     * blocks which are all zeroes on disk are zeroes in plaintext as well, so they are not decrypted.
+     */
+    private void readBlocks(long offsetInThisBucket, ByteBuffer target) throws IOException {
+        final int start = target.position();
+        int read = 0;
+        final FileChannel openChannel = getOpenChannel();
+        while (target.hasRemaining()) {
+            //positional reads do not touch the channel position, so concurrent reads need no lock
+            final int readNow = openChannel.read(target, offsetInThisBucket + read);
+            if (readNow < 0) {
+                break;
             }
-            LOGGER.debug("tried to read more bytes from this file than ever were written, replacing with {} zeroes", zeroes.length);
-            readInto.put(zeroes);
+            read += readNow;
+        }
+        int encryptedFrom = -1;
+        for (int block = 0; block < read; block += EncConstants.BLOCKSIZE) {
+            final int blockEnd = Math.min(block + EncConstants.BLOCKSIZE, read);
+            if (isZero(target, start + block, start + blockEnd)) {
+                if (encryptedFrom >= 0) {
+                    decrypt(offsetInThisBucket, target, start, encryptedFrom, block);
+                    encryptedFrom = -1;
+                }
+            } else if (encryptedFrom < 0) {
+                encryptedFrom = block;
+            }
+        }
+        if (encryptedFrom >= 0) {
+            decrypt(offsetInThisBucket, target, start, encryptedFrom, read);
+        }
+        if (target.hasRemaining()) {
+            LOGGER.debug("tried to read more bytes from this file than ever were written, replacing with {} zeroes", target.remaining());
+            putZeroes(target);
+        }
+    }
+
+    private void decrypt(long offsetInThisBucket, ByteBuffer buffer, int start, int from, int to) {
+        final ByteBuffer encrypted = buffer.duplicate();
+        encrypted.limit(start + to);
+        encrypted.position(start + from);
+        encryption.encrypt(baseOffset + offsetInThisBucket + from, encrypted, encrypted.duplicate());
+    }
 
+    private static void putZeroes(ByteBuffer target) {
+        while (target.hasRemaining()) {
+            final ByteBuffer zeroes = ZEROES.duplicate();
+            zeroes.limit(Math.min(zeroes.capacity(), target.remaining()));
+            target.put(zeroes);
         }
-        return lengthInThisBucket;
+    }
+
+    @Override
+    public List<Extent> extents(long offset, long length) {
+        final long offsetInThisBucket = offsetInThisBucket(offset);
+        final long end = offsetInThisBucket + calcLengthInThisBucket(offsetInThisBucket, length);
+        final List<Extent> extents = new ArrayList<>();
+        for (long position = offsetInThisBucket; position < end; ) {
+            final int block = blockIndex(position);
+            final long runEnd = Math.min((long) allocation.runEnd(block, allocation.blockCount()) * EncConstants.BLOCKSIZE, end);
+            extents.add(new Extent(runEnd - position, allocation.isAllocated(block)));
+            position = runEnd;
+        }
+        return extents;
     }
 
     @Override
@@ -123,13 +217,14 @@ class SingleFileBucket implements Bucket {
     }
 
     public void flush() {
-        if (!needsFlush) {
-            return;
-        }
-        needsFlush = false;
-        LOGGER.info("flushing bucket {}", bucketNumber);
         try {
             synchronized (this) {
+                //checked again under the lock, a flush which is still running has to finish before we may report the bucket as clean
+                if (!needsFlush) {
+                    return;
+                }
+                needsFlush = false;
+                LOGGER.info("flushing bucket {}", bucketNumber);
                 final FileChannel openChannel = getOpenChannel();
                 if (openChannel.isOpen()) {
                     openChannel.force(wantsTimestampUpdate);
@@ -139,6 +234,7 @@ class SingleFileBucket implements Bucket {
                         lastModifiedTime = FileTime.from(Instant.now());
                     }
                     wantsTimestampUpdate = false;
+                    allocation.saveIfDirty(filePath); //only now the data it describes is on disk
                 }
             }
         } catch (IOException e) {
@@ -155,36 +251,204 @@ class SingleFileBucket implements Bucket {
         if (needsMetadataUpdate) {
             wantsTimestampUpdate = true;
         }
-        if (stillAllZeroes(message)) {
-            return message.remaining();
+        final int length = message.remaining();
+        final long offsetInThisBucket = offsetInThisBucket(offset);
+        final long alignedStart = blockStart(offsetInThisBucket);
+        final long alignedEnd = blockEnd(offsetInThisBucket + length - 1);
+        if (alignedStart == offsetInThisBucket && alignedEnd == offsetInThisBucket + length) {
+            writeBlocks(alignedStart, message);
+            return length;
         }
-        synchronized (this) {
-            needsFlush = true;
-            final long offsetInThisBucket = offsetInThisBucket(offset);
-            final FileChannel openChannel = getOpenChannel();
-            openChannel.position(offsetInThisBucket);
-            final ByteBuffer encrypted = encryption.encrypt(offset, message);
-            return openChannel.write(encrypted);
+        //a block is either all plain zeroes or all ciphertext on disk, so partially written blocks are rewritten as a whole
+        final int alignedLength = Ints.checkedCast(alignedEnd - alignedStart);
+        final ByteBuf blocksBuf = PooledByteBufAllocator.DEFAULT.directBuffer(alignedLength);
+        try {
+            final ByteBuffer blocks = blocksBuf.nioBuffer(0, alignedLength);
+            synchronized (partialBlockLock) {
+                readEdgeBlock(alignedStart, blocks, 0);
+                final long lastBlockStart = blockStart(alignedEnd - 1);
+                if (lastBlockStart != alignedStart) {
+                    readEdgeBlock(lastBlockStart, blocks, Ints.checkedCast(lastBlockStart - alignedStart));
+                }
+                blocks.position(Ints.checkedCast(offsetInThisBucket - alignedStart));
+                blocks.put(message.duplicate());
+                blocks.clear();
+                writeBlocks(alignedStart, blocks);
+            }
+        } finally {
+            blocksBuf.release();
         }
+        return length;
+    }
+
+    private void readEdgeBlock(long blockStart, ByteBuffer blocks, int index) throws IOException {
+        final ByteBuffer block = blocks.duplicate();
+        block.position(index);
+        block.limit(index + Ints.checkedCast(blockEnd(blockStart) - blockStart));
+        readRange(blockStart, block);
     }
 
+    /**
+     * writes the plaintext starting at the block aligned offsetInThisBucket.
+     * blocks which are all zeroes are stored as plain zeroes, everything else encrypted.
+     * zero blocks which are not allocated are not written at all.
+     */
+    private void writeBlocks(long offsetInThisBucket, ByteBuffer plaintext) throws IOException {
+        final int length = plaintext.remaining();
+        final int firstBlock = blockIndex(offsetInThisBucket);
+        final BitSet zeroBlocks = new BitSet();
+        final BitSet skippedBlocks = new BitSet();
+        boolean anythingToWrite = false;
+        for (int block = 0; block * EncConstants.BLOCKSIZE < length; block++) {
+            final int from = block * EncConstants.BLOCKSIZE;
+            final int to = Math.min(from + EncConstants.BLOCKSIZE, length);
+            if (isZero(plaintext, plaintext.position() + from, plaintext.position() + to)) {
+                zeroBlocks.set(block);
+                if (allocation.isAllocated(firstBlock + block)) {
+                    anythingToWrite = true;
+                } else {
+                    skippedBlocks.set(block);
+                }
+            } else {
+                allocation.allocate(firstBlock + block); //before the write, so the bitmap never claims real data to be empty
+                anythingToWrite = true;
+            }
+        }
+        if (!anythingToWrite) {
+            LOGGER.debug("saved some resources by not writing zeroes");
+            return;
+        }
+        //encrypt into pooled direct memory, so FileChannel.write does not need to copy it into a temporary direct buffer again
+        final ByteBuf encryptedBuf = PooledByteBufAllocator.DEFAULT.directBuffer(length);
+        try {
+            final ByteBuffer encrypted = encryptedBuf.nioBuffer(0, length);
+            encryption.encrypt(baseOffset + offsetInThisBucket, plaintext.duplicate(), encrypted);
+            for (int block = zeroBlocks.nextSetBit(0); block >= 0; block = zeroBlocks.nextSetBit(block + 1)) {
+                final int from = block * EncConstants.BLOCKSIZE;
+                encryptedBuf.setZero(from, Math.min(from + EncConstants.BLOCKSIZE, length) - from);
+            }
+            final FileChannel openChannel = getOpenChannel();
+            int block = 0;
+            while (block * EncConstants.BLOCKSIZE < length) {
+                final boolean skip = skippedBlocks.get(block);
+                final int blockCount = (length + EncConstants.BLOCKSIZE - 1) / EncConstants.BLOCKSIZE;
+                final int next = skip ? skippedBlocks.nextClearBit(block) : skippedBlocks.nextSetBit(block);
+                final int runEnd = next < 0 ? blockCount : Math.min(next, blockCount);
+                if (!skip) {
+                    final int from = block * EncConstants.BLOCKSIZE;
+                    final ByteBuffer run = encrypted.duplicate();
+                    run.limit(Math.min(runEnd * EncConstants.BLOCKSIZE, length));
+                    run.position(from);
+                    while (run.hasRemaining()) {
+                        openChannel.write(run, offsetInThisBucket + run.position());
+                    }
+                }
+                block = runEnd;
+            }
+            needsFlush = true; //only after the write, so a concurrent flush can not clear it before our data reached the channel
+            for (int zero = zeroBlocks.nextSetBit(0); zero >= 0; zero = zeroBlocks.nextSetBit(zero + 1)) {
+                allocation.release(firstBlock + zero, firstBlock + zero + 1);
+            }
+        } finally {
+            encryptedBuf.release();
+        }
+    }
 
-    private boolean stillAllZeroes(ByteBuffer message) {
-        if (fileWasZero) {
-            final ByteBuffer checkForZeroes = message.duplicate();
-            checkForZeroes.rewind();
-            while (checkForZeroes.hasRemaining()) {
-                final byte b = checkForZeroes.get();
-                if (b != 0) {
-                    fileWasZero = false;
+    /**
+     * stores the range as plain zeroes without encrypting anything, partial blocks at the edges are rewritten as a whole.
+     * if we may deallocate, the whole blocks in between become a hole instead. otherwise every byte of the range is written,
+     * so holes and the part beyond the end of the file get allocated too.
+     */
+    private void writeZeroRange(long offsetInThisBucket, long length, boolean mayDeallocate) throws IOException {
+        //beyond the end of the file everything is zero already, it only needs writing if the client wants it allocated
+        final long start = offsetInThisBucket;
+        final long end = mayDeallocate ? Math.min(offsetInThisBucket + length, getOpenChannel().size()) : offsetInThisBucket + length;
+        if (end <= start) {
+            return;
+        }
+        final long headEnd = Math.min(start == blockStart(start) ? start : blockEnd(start), end);
+        final long tailStart = Math.max(end == blockEnd(end - 1) ? end : blockStart(end), headEnd);
+        putZeroEdge(start, headEnd, !mayDeallocate);
+        for (long runStart = headEnd; runStart < tailStart; ) {
+            final int block = blockIndex(runStart);
+            final long runEnd = Math.min((long) allocation.runEnd(block, allocation.blockCount()) * EncConstants.BLOCKSIZE, tailStart);
+            if (allocation.isAllocated(block) || !mayDeallocate) {
+                //only whole blocks get deallocated, a hole reads as zeroes which is exactly how zero blocks are stored anyway
+                final boolean punched = mayDeallocate && HolePuncher.punchHole(filePath, runStart, runEnd - runStart);
+                if (!punched) {
+                    writeZeroBlocks(runStart, runEnd);
                 }
+                allocation.release(block, blockIndex(runEnd - 1) + 1);
+            }
+            runStart = runEnd;
+        }
+        putZeroEdge(tailStart, end, !mayDeallocate);
+        needsFlush = true;
+    }
+
+    /**
+     * zeroes part of a single block. if the block has to get allocated and holds no data, it is written as a whole.
+     * that is decided under the same lock partial writes take, a concurrent one may just be putting data into this block.
+     */
+    private void putZeroEdge(long from, long to, boolean allocate) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        synchronized (partialBlockLock) {
+            if (allocate && !allocation.isAllocated(blockIndex(from))) {
+                writeZeroBlocks(blockStart(from), blockEnd(from));
+            } else {
+                putZeroBytes(from, to - from);
+            }
+        }
+    }
+
+    private void writeZeroBlocks(long from, long to) throws IOException {
+        final FileChannel openChannel = getOpenChannel();
+        for (long position = from; position < to; ) {
+            final ByteBuffer zeroes = ZEROES.duplicate();
+            zeroes.limit(Ints.checkedCast(Math.min(zeroes.capacity(), to - position)));
+            position += openChannel.write(zeroes, position);
+        }
+    }
+
+    private void putZeroBytes(long offsetInThisBucket, long length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        final ByteBuffer zeroes = ZEROES.duplicate();
+        zeroes.limit(Ints.checkedCast(length));
+        putBytesInternal(baseOffset + offsetInThisBucket, zeroes, false);
+    }
+
+    private static int blockIndex(long offsetInThisBucket) {
+        return Ints.checkedCast(offsetInThisBucket / EncConstants.BLOCKSIZE);
+    }
+
+    private long blockStart(long offsetInThisBucket) {
+        return offsetInThisBucket - offsetInThisBucket % EncConstants.BLOCKSIZE;
+    }
+
+    /**
+     * @return the end of the block containing offsetInThisBucket, the last block may be cut short by the bucket size
+     */
+    private long blockEnd(long offsetInThisBucket) {
+        return Math.min(blockStart(offsetInThisBucket) + EncConstants.BLOCKSIZE, bucketSize);
+    }
+
+    private static boolean isZero(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) {
+                return false;
             }
-            if (fileWasZero) {
-                LOGGER.debug("saved some resources by not writing zeroes");
-                return true;
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
             }
         }
-        return false;
+        return true;
     }
 
     private long offsetInThisBucket(long offset) {
@@ -193,42 +457,46 @@ class SingleFileBucket implements Bucket {
 
     @Override
     public void trim(long offset, long length) throws IOException {
+        writeZeroes(offset, length, true);
+    }
+
+    @Override
+    public void writeZeroes(long offset, long length, boolean mayDeallocate) throws IOException {
         final long offsetInThisBucket = offsetInThisBucket(offset);
         final long lengthInThisBucket = calcLengthInThisBucket(offsetInThisBucket, length); //should be always equal to length since it is normalized in MineboxEport
         final FileChannel channel = getOpenChannel();
         final long fileSize = channel.size();
-        if (fileSize == 0 || offsetInThisBucket >= fileSize) {
+        if (!mayDeallocate) {
+            //the client wants the range allocated, nothing may be truncated or skipped
+            writeZeroRange(offsetInThisBucket, lengthInThisBucket, false);
+        } else if (fileSize == 0 || offsetInThisBucket >= fileSize) {
             //if the file is empty, there is nothing to trim
         } else if (lengthInThisBucket == this.bucketSize) {
             if (fileSize > 0)
             //if we are trimming the whole bucket we can truncate to 0
             {
-                synchronized (this) {
-                    channel.truncate(0);
-                    channel.force(true);
-                }
+                channel.truncate(0);
+                channel.force(true);
+                allocation.release(0, allocation.blockCount());
                 needsFlush = true;
             }
         } else if (offsetInThisBucket == 0 && lengthInThisBucket >= fileSize) {
             //we are trimming the whole file, so we can truncate it.
-            synchronized (this) {
-                channel.truncate(0);
-                channel.force(true);
-            }
+            channel.truncate(0);
+            channel.force(true);
+            allocation.release(0, allocation.blockCount());
             needsFlush = true;
         } else if (offsetInThisBucket + lengthInThisBucket == this.bucketSize) {
-            //truncating from index until end, we can shorten the file now
-            synchronized (this) {
-                channel.truncate(offsetInThisBucket);
-                channel.force(false); //since we assume the un-truncated file was actually backed up, we don't care if this shortened file is not the one uploaded, since truncate is a "best effort" operations btrfs should tolerate those data being non-zero
-            }
+            //truncating from index until end, we can shorten the file now. only at a block boundary, the rest of a partial
+            //block is zeroed like any partial write, otherwise a concurrent write to its head could bring back the old tail
+            final long truncateAt = offsetInThisBucket == blockStart(offsetInThisBucket) ? offsetInThisBucket : blockEnd(offsetInThisBucket);
+            putZeroEdge(offsetInThisBucket, truncateAt, false);
+            channel.truncate(truncateAt);
+            channel.force(false); //since we assume the un-truncated file was actually backed up, we don't care if this shortened file is not the one uploaded, since truncate is a "best effort" operations btrfs should tolerate those data being non-zero
+            allocation.release(blockIndex(truncateAt), allocation.blockCount());
             needsFlush = true;
         } else {
-            final int intLen = Ints.checkedCast(length); //buckets can not be bigger than 2GB right now, could be fixed
-            final ByteBuffer bb = ByteBuffer.allocate(intLen);
-            bb.put(new byte[intLen]);
-            bb.flip();
-            putBytesInternal(offset, bb, false); //sadly, this will encrypt zeroes. we need a workaround
+            writeZeroRange(offsetInThisBucket, lengthInThisBucket, true);
         }
     }
 
@@ -243,17 +511,21 @@ class SingleFileBucket implements Bucket {
     }
 
     private FileChannel getOpenChannel() {
-        if (channel == null || !channel.isOpen()) {
-            LOGGER.debug("opening channel in bucket {} ", bucketNumber);
-            try {
-                randomAccessFile = new RandomAccessFile(file, "rw");
-            } catch (FileNotFoundException e) {
-                throw new IllegalStateException(e);
+        final FileChannel current = channel;
+        if (current != null && current.isOpen()) {
+            return current;
+        }
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                LOGGER.debug("opening channel in bucket {} ", bucketNumber);
+                try {
+                    randomAccessFile = new RandomAccessFile(file, "rw");
+                } catch (FileNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+                channel = randomAccessFile.getChannel();
+                Preconditions.checkState(channel.isOpen());
             }
-            channel = randomAccessFile.getChannel();
-            Preconditions.checkState(channel.isOpen());
-            return channel;
-        } else {
             return channel;
         }
     }
@@ -14,6 +14,11 @@ public class TestDownloadService implements DownloadService {
         return RecoveryStatus.NO_FILE;
     }
 
+    @Override
+    public boolean isRecoverable(RecoverableFile file) {
+        return false;
+    }
+
     @Override
     public boolean hasMetadata() {
         return false;
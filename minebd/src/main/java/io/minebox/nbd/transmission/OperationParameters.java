@@ -1,5 +1,6 @@
 package io.minebox.nbd.transmission;
 
+import io.minebox.nbd.Protocol;
 import io.netty.buffer.ByteBuf;
 
 class OperationParameters {
@@ -32,6 +33,22 @@ class OperationParameters {
         cmdLength = -1;
     }
 
+    boolean isFua() {
+        return (cmdFlags & Protocol.NBD_CMD_FLAG_FUA) != 0;
+    }
+
+    boolean isNoHole() {
+        return (cmdFlags & Protocol.NBD_CMD_FLAG_NO_HOLE) != 0;
+    }
+
+    boolean isDf() {
+        return (cmdFlags & Protocol.NBD_CMD_FLAG_DF) != 0;
+    }
+
+    boolean isReqOne() {
+        return (cmdFlags & Protocol.NBD_CMD_FLAG_REQ_ONE) != 0;
+    }
+
     static OperationParameters readFromMessage(ByteBuf message) {
         return new OperationParameters(message);
     }
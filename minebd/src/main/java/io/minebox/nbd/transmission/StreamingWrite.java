@@ -0,0 +1,55 @@
+package io.minebox.nbd.transmission;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a large NBD write whose payload is handed to the export in chunks while it is still arriving.
+ * the reply is sent once the whole payload was received and every chunk has landed.
+ */
+class StreamingWrite {
+
+    final OperationParameters op;
+    final long sequence;
+    private long received = 0; //only touched on the event loop
+    private final AtomicInteger outstanding = new AtomicInteger(1); //the extra one is released when the last chunk was received
+    private volatile int error = 0;
+
+    StreamingWrite(OperationParameters op, long sequence) {
+        this.op = op;
+        this.sequence = sequence;
+    }
+
+    long nextOffset() {
+        return op.cmdOffset + received;
+    }
+
+    long remaining() {
+        return op.cmdLength - received;
+    }
+
+    void chunkReceived(int length) {
+        received += length;
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * @return true if the caller completed the whole write and has to reply
+     */
+    boolean chunkDone(int err) {
+        if (err != 0) {
+            error = err;
+        }
+        return outstanding.decrementAndGet() == 0;
+    }
+
+    /**
+     * @return true if all chunks already landed and the caller has to reply
+     */
+    boolean receiveDone() {
+        return chunkDone(0);
+    }
+
+    int getError() {
+        return error;
+    }
+}
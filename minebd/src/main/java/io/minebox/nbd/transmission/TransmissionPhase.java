@@ -4,13 +4,14 @@ import com.google.common.base.Charsets;
 import com.google.common.primitives.Ints;
 import com.sun.management.OperatingSystemMXBean;
 import io.minebox.config.MinebdConfig;
-import io.minebox.nbd.BlockingExecutor;
+import io.minebox.nbd.IoScheduler;
 import io.minebox.nbd.Protocol;
 import io.minebox.nbd.ep.ExportProvider;
+import io.minebox.nbd.ep.Extent;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,8 +22,12 @@ import java.nio.ByteBuffer;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -32,24 +37,37 @@ public class TransmissionPhase extends ByteToMessageDecoder {
     private static final Logger LOGGER = LoggerFactory.getLogger(TransmissionPhase.class);
 
     private final long minFreeSystemMem;
-    private final ExecutorService executor;
+    private final IoScheduler ioScheduler;
     private final OperatingSystemMXBean osBean;
     private final ExportProvider exportProvider;
     private final AtomicInteger numOperations = new AtomicInteger(0);
     private final AtomicInteger pendingOperations = new AtomicInteger(0);
+    private final AtomicInteger readPauses = new AtomicInteger(0);
     private final AtomicLong unflushedBytes = new AtomicLong(0);
     private final AtomicLong checkReadCacheBytes = new AtomicLong(0);
+    private final WriteBarrier writeBarrier = new WriteBarrier();
     private final long maxUnflushedBytes;
+    private final long streamingWriteChunk;
+    private final long bucketSize;
+    private final boolean structuredReplies;
+    private final boolean allocationContext;
     private final AtomicReference<OperationParameters> operationParameters = new AtomicReference<>(OperationParameters.RECEIVE_STATE);
     private volatile boolean loggedHighPending = false;
     private volatile long lastLog;
+    private boolean flushScheduled = false; //only touched on the event loop
+    private StreamingWrite streamingWrite; //only touched on the event loop
+    private CompletableFuture<Void> backgroundFlush = CompletableFuture.completedFuture(null); //only touched on the event loop
 
-    public TransmissionPhase(MinebdConfig config, ExportProvider exportProvider) {
+    public TransmissionPhase(MinebdConfig config, ExportProvider exportProvider, IoScheduler ioScheduler, boolean structuredReplies, boolean allocationContext) {
         super();
+        this.structuredReplies = structuredReplies;
+        this.allocationContext = allocationContext;
         this.maxUnflushedBytes = config.maxUnflushed.toBytes();
         this.minFreeSystemMem = config.minFreeSystemMem.toBytes();
+        this.streamingWriteChunk = config.streamingWriteChunk.toBytes();
+        this.bucketSize = config.bucketSize.toBytes();
         this.exportProvider = exportProvider;
-        executor = new BlockingExecutor(10, 20);
+        this.ioScheduler = ioScheduler;
         osBean = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
     }
 
@@ -77,22 +95,30 @@ public class TransmissionPhase extends ByteToMessageDecoder {
                         operationParameters.set(OperationParameters.readFromMessage(in));
                         break;
 
-                    //FIXME: this will buffer maybe a lot of bytes?!
                     case TM_RECEIVE_CMD_DATA:
                         final OperationParameters op = this.operationParameters.getAndSet(OperationParameters.LIMBO_STATE);
                         if (op == null) {
                             throw new IllegalStateException("unexpected null state");
                         }
                         LOGGER.debug("preparing {}, handle {}", op.cmdType, op.cmdHandle);
+                        if (op.cmdType == Protocol.NBD_CMD_WRITE && op.cmdLength > streamingWriteChunk) {
+                            //large writes are not buffered as a whole, their chunks go to disk while the rest is still arriving
+                            if (!receiveStreamingWrite(ctx, in, op)) {
+                                operationParameters.set(op); //restore from limbo to "try again when buffer is filled"
+                                return;
+                            }
+                            operationParameters.set(OperationParameters.RECEIVE_STATE);
+                            break;
+                        }
                         ByteBuf buf = null;
                         if (op.cmdType == Protocol.NBD_CMD_WRITE) {
                             if (!hasMin(in, op.cmdLength)) {
                                 operationParameters.set(op); //restore from limbo to "try again when buffer is filled"
                                 return;
                             } else {
-                                //enough data in buffer to get the full write operation, lets read it into a separate buffer so we can parse the next param
+                                //enough data in buffer to get the full write operation, retain a slice of it so we can parse the next param without copying
                                 try {
-                                    buf = in.readBytes(Ints.checkedCast(op.cmdLength));
+                                    buf = in.readRetainedSlice(Ints.checkedCast(op.cmdLength));
                                 } catch (Exception e) {
                                     LOGGER.error("error during preparation of write", e);
                                     sendTransmissionSimpleReply(ctx, Protocol.EIO_ERROR, op.cmdHandle, null);
@@ -116,21 +142,51 @@ public class TransmissionPhase extends ByteToMessageDecoder {
         }
     }
 
+    /**
+     * @return true once the whole payload of the write was received and handed out
+     */
+    private boolean receiveStreamingWrite(ChannelHandlerContext ctx, ByteBuf in, OperationParameters op) {
+        if (streamingWrite == null) {
+            LOGGER.debug("streaming write to {} length {}", op.cmdOffset, op.cmdLength);
+            pendingOperations.incrementAndGet();
+            freeAndFlushIfNeeded(ctx, op);
+            streamingWrite = new StreamingWrite(op, writeBarrier.begin());
+        }
+        final StreamingWrite write = streamingWrite;
+        while (write.remaining() > 0) {
+            final long offset = write.nextOffset();
+            //chunks never cross a bucket border
+            final int chunkLength = Ints.checkedCast(Math.min(Math.min(write.remaining(), streamingWriteChunk), bucketSize - offset % bucketSize));
+            if (!hasMin(in, chunkLength)) {
+                return false;
+            }
+            final ByteBuf chunk = in.readRetainedSlice(chunkLength);
+            write.chunkReceived(chunkLength);
+            submit(ctx, IoScheduler.Priority.WRITE, ExportProvider.Access.WRITE, offset, chunkLength, chunkLength, createWriteChunkOperation(ctx, write, offset, chunk));
+        }
+        streamingWrite = null;
+        if (write.receiveDone()) {
+            writeBarrier.end(write.sequence);
+            sendTransmissionSimpleReply(ctx, write.getError(), op.cmdHandle, null);
+        }
+        return true;
+    }
+
     private void processOperation(ChannelHandlerContext ctx, ByteBuf dataToWrite, OperationParameters opParams)
             throws IOException {
         pendingOperations.incrementAndGet();
         switch (opParams.cmdType) {
             case Protocol.NBD_CMD_READ: {
                 freeIfNeeded(opParams);
-                Runnable operation = createReadOperation(ctx, opParams);
-                executor.execute(operation);
+                Runnable operation = structuredReplies ? createStructuredReadOperation(ctx, opParams) : createReadOperation(ctx, opParams);
+                submit(ctx, IoScheduler.Priority.READ, ExportProvider.Access.READ, opParams, opParams.cmdLength, operation);
                 break;
             }
             case Protocol.NBD_CMD_WRITE: {
                 LOGGER.debug("writing to {} length {}", opParams.cmdOffset, opParams.cmdLength);
-                freeAndFlushIfNeeded(opParams);
-                Runnable operation = createWriteOperation(ctx, opParams, dataToWrite);
-                executor.execute(operation);
+                freeAndFlushIfNeeded(ctx, opParams);
+                Runnable operation = createWriteOperation(ctx, opParams, dataToWrite, writeBarrier.begin());
+                submit(ctx, IoScheduler.Priority.WRITE, ExportProvider.Access.WRITE, opParams, opParams.cmdLength, operation);
                 break;
             }
             case Protocol.NBD_CMD_DISC: {
@@ -141,14 +197,31 @@ public class TransmissionPhase extends ByteToMessageDecoder {
             case Protocol.NBD_CMD_FLUSH: {
                 LOGGER.debug("got flush..");
                 checkFreeMem();
-                Runnable flushOperation = createFlushOperation(ctx, opParams.cmdHandle);
-                executor.execute(flushOperation);
+                unflushedBytes.set(0);
+                flushAfterPendingWrites(ctx, opParams.cmdHandle);
                 break;
             }
             case Protocol.NBD_CMD_TRIM: {
                 LOGGER.debug("trimming from {} length {}", opParams.cmdOffset, opParams.cmdLength);
-                Runnable trimOperation = createTrimOperation(ctx, opParams);
-                executor.execute(trimOperation);
+                Runnable trimOperation = createTrimOperation(ctx, opParams, writeBarrier.begin());
+                submit(ctx, IoScheduler.Priority.WRITE, ExportProvider.Access.WRITE, opParams, 0, trimOperation);
+                break;
+            }
+            case Protocol.NBD_CMD_WRITE_ZEROES: {
+                LOGGER.debug("zeroing from {} length {}", opParams.cmdOffset, opParams.cmdLength);
+                freeAndFlushIfNeeded(ctx, opParams);
+                Runnable zeroOperation = createWriteZeroesOperation(ctx, opParams, writeBarrier.begin());
+                submit(ctx, IoScheduler.Priority.WRITE, ExportProvider.Access.WRITE, opParams, 0, zeroOperation);
+                break;
+            }
+            case Protocol.NBD_CMD_BLOCK_STATUS: {
+                LOGGER.debug("block status from {} length {}", opParams.cmdOffset, opParams.cmdLength);
+                if (!allocationContext) {
+                    sendTransmissionSimpleReply(ctx, Protocol.EINVAL_ERROR, opParams.cmdHandle, null);
+                    break;
+                }
+                Runnable blockStatusOperation = createBlockStatusOperation(ctx, opParams);
+                submit(ctx, IoScheduler.Priority.READ, ExportProvider.Access.EXTENTS, opParams, 0, blockStatusOperation);
                 break;
             }
             default:
@@ -157,6 +230,20 @@ public class TransmissionPhase extends ByteToMessageDecoder {
     }
 
 
+    private void submit(ChannelHandlerContext ctx, IoScheduler.Priority priority, ExportProvider.Access access, OperationParameters opParams, long bytes, Runnable operation) {
+        submit(ctx, priority, access, opParams.cmdOffset, opParams.cmdLength, bytes, operation);
+    }
+
+    private void submit(ChannelHandlerContext ctx, IoScheduler.Priority priority, ExportProvider.Access access, long offset, long length, long bytes, Runnable operation) {
+        //a range which is still being restored parks only this request, not a disk thread
+        ioScheduler.execute(priority, bytes, exportProvider.prepare(offset, length, access), operation);
+        if (ioScheduler.isSaturated()) {
+            //too much is queued for disk already, leave further requests in the socket until it drained
+            pauseReading(ctx);
+            ioScheduler.whenAvailable(() -> resumeReading(ctx));
+        }
+    }
+
     private static boolean hasMin(ByteBuf in, long wanted) {
         final int readableBytes = in.readableBytes();
         return readableBytes >= wanted;
@@ -170,14 +257,37 @@ public class TransmissionPhase extends ByteToMessageDecoder {
         }
     }
 
-    private void freeAndFlushIfNeeded(OperationParameters operationParameters) throws IOException {
+    private void freeAndFlushIfNeeded(ChannelHandlerContext ctx, OperationParameters operationParameters) {
         final long sum = unflushedBytes.addAndGet(operationParameters.cmdLength);
         if (sum > maxUnflushedBytes) { //tune this number
             LOGGER.debug("Rohr voll, ZWISCHENSPÜLUNG!");
             checkFreeMem();
-            exportProvider.flush(); //this hopefully flushes all and blocks until it is fully done
+            if (!backgroundFlush.isDone()) {
+                //the last flush has not caught up yet, stop taking in more data until it did
+                pauseReadingUntil(ctx, backgroundFlush);
+            }
+            backgroundFlush = exportProvider.flushInBackground();
             unflushedBytes.set(0);
-            unflushedBytes.addAndGet(operationParameters.cmdLength); //i just flushed, but this write counts already for the next
+            unflushedBytes.addAndGet(operationParameters.cmdLength); //flush is requested, but this write counts already for the next
+        }
+    }
+
+    private void pauseReadingUntil(ChannelHandlerContext ctx, CompletableFuture<Void> future) {
+        LOGGER.debug("pausing reads until the background flush finished");
+        pauseReading(ctx);
+        future.whenComplete((ignored, e) -> resumeReading(ctx));
+    }
+
+    //flushes and the scheduler may both hold reading back, it only goes on once neither does
+    private void pauseReading(ChannelHandlerContext ctx) {
+        if (readPauses.getAndIncrement() == 0) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    private void resumeReading(ChannelHandlerContext ctx) {
+        if (readPauses.decrementAndGet() == 0) {
+            ctx.channel().config().setAutoRead(true);
         }
     }
 
@@ -202,53 +312,166 @@ public class TransmissionPhase extends ByteToMessageDecoder {
             int err = 0;
             try {
                 //FIXME: use FUA/sync flag correctly
-                ByteBuffer bb = exportProvider.read(operationParameters.cmdOffset, Ints.checkedCast(operationParameters.cmdLength));
-                data = Unpooled.wrappedBuffer(bb);
+                final int length = Ints.checkedCast(operationParameters.cmdLength);
+                data = ctx.alloc().directBuffer(length);
+                final ByteBuffer readInto = data.nioBuffer(0, length);
+                exportProvider.read(operationParameters.cmdOffset, readInto);
+                data.writerIndex(length - readInto.remaining());
                 checkReadLength(operationParameters, data);
             } catch (Exception e) {
                 LOGGER.error("error during read", e);
                 err = Protocol.EIO_ERROR;
+                if (data != null) {
+                    data.release();
+                    data = null;
+                }
             } finally {
                 sendTransmissionSimpleReply(ctx, err, operationParameters.cmdHandle, data);
             }
         };
     }
 
-    private Runnable createWriteOperation(ChannelHandlerContext ctx, OperationParameters operationParameters, ByteBuf buf) {
+    /**
+     * answers a read in chunks, ranges which are known to be zero are sent as holes instead of data.
+     */
+    private Runnable createStructuredReadOperation(ChannelHandlerContext ctx, OperationParameters operationParameters) {
+        return () -> {
+            final List<ByteBuf> reply = new ArrayList<>();
+            try {
+                final List<Extent> extents = operationParameters.isDf()
+                        ? Collections.singletonList(new Extent(operationParameters.cmdLength, true))
+                        : exportProvider.extents(operationParameters.cmdOffset, operationParameters.cmdLength);
+                long offset = operationParameters.cmdOffset;
+                for (int i = 0; i < extents.size(); i++) {
+                    final Extent extent = extents.get(i);
+                    final int flags = i == extents.size() - 1 ? Protocol.NBD_REPLY_FLAG_DONE : 0;
+                    final int length = Ints.checkedCast(extent.length);
+                    if (extent.allocated) {
+                        final ByteBuf data = ctx.alloc().directBuffer(length);
+                        reply.add(structuredReplyHeader(ctx, flags, Protocol.NBD_REPLY_TYPE_OFFSET_DATA, operationParameters.cmdHandle, 8 + length)
+                                .writeLong(offset));
+                        reply.add(data);
+                        final ByteBuffer readInto = data.nioBuffer(0, length);
+                        exportProvider.read(offset, readInto);
+                        data.writerIndex(length - readInto.remaining());
+                        if (data.readableBytes() != length) {
+                            throw new IllegalStateException("read " + data.readableBytes() + " bytes instead of " + length + " from " + offset);
+                        }
+                    } else {
+                        reply.add(structuredReplyHeader(ctx, flags, Protocol.NBD_REPLY_TYPE_OFFSET_HOLE, operationParameters.cmdHandle, 12)
+                                .writeLong(offset)
+                                .writeInt(length));
+                    }
+                    offset += length;
+                }
+            } catch (Exception e) {
+                LOGGER.error("error during read", e);
+                reply.forEach(ByteBuf::release);
+                reply.clear();
+                reply.add(structuredErrorReply(ctx, Protocol.EIO_ERROR, operationParameters.cmdHandle));
+            } finally {
+                if (reply.isEmpty()) {
+                    reply.add(structuredReplyHeader(ctx, Protocol.NBD_REPLY_FLAG_DONE, Protocol.NBD_REPLY_TYPE_NONE, operationParameters.cmdHandle, 0));
+                }
+                sendReply(ctx, reply);
+            }
+        };
+    }
+
+    private Runnable createBlockStatusOperation(ChannelHandlerContext ctx, OperationParameters opParams) {
+        return () -> {
+            ByteBuf reply = null;
+            try {
+                List<Extent> extents = exportProvider.extents(opParams.cmdOffset, opParams.cmdLength);
+                if (opParams.isReqOne()) {
+                    extents = extents.subList(0, 1);
+                }
+                reply = structuredReplyHeader(ctx, Protocol.NBD_REPLY_FLAG_DONE, Protocol.NBD_REPLY_TYPE_BLOCK_STATUS, opParams.cmdHandle, 4 + 8 * extents.size());
+                reply.writeInt(Protocol.BASE_ALLOCATION_CONTEXT_ID);
+                for (Extent extent : extents) {
+                    reply.writeInt((int) extent.length); //unsigned 32 bit, never more than the request length
+                    reply.writeInt(extent.allocated ? 0 : Protocol.NBD_STATE_HOLE | Protocol.NBD_STATE_ZERO);
+                }
+            } catch (Exception e) {
+                LOGGER.error("error during block status", e);
+                if (reply != null) {
+                    reply.release();
+                }
+                reply = structuredErrorReply(ctx, Protocol.EIO_ERROR, opParams.cmdHandle);
+            } finally {
+                sendReply(ctx, Collections.singletonList(reply));
+            }
+        };
+    }
+
+    private static ByteBuf structuredReplyHeader(ChannelHandlerContext ctx, int flags, int type, long handle, int length) {
+        final ByteBuf header = ctx.alloc().buffer(20 + 12);
+        header.writeInt(Protocol.NBD_STRUCTURED_REPLY_MAGIC);
+        header.writeShort(flags);
+        header.writeShort(type);
+        header.writeLong(handle);
+        header.writeInt(length);
+        return header;
+    }
+
+    private static ByteBuf structuredErrorReply(ChannelHandlerContext ctx, int error, long handle) {
+        return structuredReplyHeader(ctx, Protocol.NBD_REPLY_FLAG_DONE, Protocol.NBD_REPLY_TYPE_ERROR, handle, 6)
+                .writeInt(error)
+                .writeShort(0); //no message
+    }
+
+    private Runnable createWriteOperation(ChannelHandlerContext ctx, OperationParameters operationParameters, ByteBuf buf, long sequence) {
         return () -> {
             int err = 0;
             try {
-                //FIXME: use FUA/sync flag correctly
-                exportProvider.write(operationParameters.cmdOffset, buf.nioBuffer(), false);
+                exportProvider.write(operationParameters.cmdOffset, buf.nioBuffer(), operationParameters.isFua());
             } catch (Exception e) {
                 LOGGER.error("error during write", e);
                 err = Protocol.EIO_ERROR;
             } finally {
+                writeBarrier.end(sequence);
                 sendTransmissionSimpleReply(ctx, err, operationParameters.cmdHandle, null);
                 buf.release();
             }
         };
     }
 
-    private Runnable createFlushOperation(ChannelHandlerContext ctx, long cmdHandle) {
-    /* todo  we must drain all NBD_CMD_WRITE and NBD_WRITE_TRIM from the queue
-     * before processing NBD_CMD_FLUSH
-     */
+    private Runnable createWriteChunkOperation(ChannelHandlerContext ctx, StreamingWrite write, long offset, ByteBuf chunk) {
         return () -> {
             int err = 0;
             try {
-                unflushedBytes.set(0);
-                exportProvider.flush();
+                exportProvider.write(offset, chunk.nioBuffer(), write.op.isFua());
             } catch (Exception e) {
-                LOGGER.error("error during flush", e);
+                LOGGER.error("error during write of chunk at {}", offset, e);
                 err = Protocol.EIO_ERROR;
             } finally {
-                sendTransmissionSimpleReply(ctx, err, cmdHandle, null);
+                chunk.release();
+                if (write.chunkDone(err)) {
+                    writeBarrier.end(write.sequence);
+                    sendTransmissionSimpleReply(ctx, write.getError(), write.op.cmdHandle, null);
+                }
             }
         };
     }
 
-    private Runnable createTrimOperation(ChannelHandlerContext ctx, OperationParameters opParams) {
+    /**
+     * a flush must cover every write and trim which was accepted before it, so we wait for those to land first.
+     * nothing blocks meanwhile, later reads and writes go on as usual.
+     */
+    private void flushAfterPendingWrites(ChannelHandlerContext ctx, long cmdHandle) {
+        writeBarrier.drained()
+                .thenCompose(ignored -> exportProvider.flushInBackground())
+                .whenComplete((ignored, e) -> {
+                    int err = 0;
+                    if (e != null) {
+                        LOGGER.error("error during flush", e);
+                        err = Protocol.EIO_ERROR;
+                    }
+                    sendTransmissionSimpleReply(ctx, err, cmdHandle, null);
+                });
+    }
+
+    private Runnable createTrimOperation(ChannelHandlerContext ctx, OperationParameters opParams, long sequence) {
         return () -> {
             int err = 0;
             try {
@@ -257,6 +480,22 @@ public class TransmissionPhase extends ByteToMessageDecoder {
                 LOGGER.error("error during trim", e);
                 err = Protocol.EIO_ERROR;
             } finally {
+                writeBarrier.end(sequence);
+                sendTransmissionSimpleReply(ctx, err, opParams.cmdHandle, null);
+            }
+        };
+    }
+
+    private Runnable createWriteZeroesOperation(ChannelHandlerContext ctx, OperationParameters opParams, long sequence) {
+        return () -> {
+            int err = 0;
+            try {
+                exportProvider.writeZeroes(opParams.cmdOffset, opParams.cmdLength, !opParams.isNoHole(), opParams.isFua());
+            } catch (Exception e) {
+                LOGGER.error("error during write zeroes", e);
+                err = Protocol.EIO_ERROR;
+            } finally {
+                writeBarrier.end(sequence);
                 sendTransmissionSimpleReply(ctx, err, opParams.cmdHandle, null);
             }
         };
@@ -277,20 +516,49 @@ public class TransmissionPhase extends ByteToMessageDecoder {
     }
 
     private void sendTransmissionSimpleReply(ChannelHandlerContext ctx, int error, long handle, ByteBuf data) {
-        synchronized (this) {
-            ByteBuf bbr = ctx.alloc().buffer(16);
-            bbr.writeInt(Protocol.REPLY_MAGIC);
-            bbr.writeInt(error); // zero for okay
-            bbr.writeLong(handle);
-            ctx.write(bbr);
-            if (data != null) {
-                ctx.write(data);
-            }
+        ByteBuf bbr = ctx.alloc().buffer(16);
+        bbr.writeInt(Protocol.REPLY_MAGIC);
+        bbr.writeInt(error); // zero for okay
+        bbr.writeLong(handle);
+        sendReply(ctx, data == null ? Collections.singletonList(bbr) : Arrays.asList(bbr, data));
+    }
+
+    private void sendReply(ChannelHandlerContext ctx, List<ByteBuf> reply) {
+        //replies may complete in any order, NBD matches them by handle. we hand them to the event loop instead of locking
+        final EventExecutor eventLoop = ctx.executor();
+        if (eventLoop.inEventLoop()) {
+            writeReply(ctx, reply);
+            return;
+        }
+        try {
+            eventLoop.execute(() -> writeReply(ctx, reply));
+        } catch (RejectedExecutionException e) {
+            //shutting down, the operation still completed but nobody is there to tell anymore
+            LOGGER.debug("dropping reply, the connection is gone");
+            reply.forEach(ByteBuf::release);
         }
-        ctx.flush();
+    }
+
+    private void writeReply(ChannelHandlerContext ctx, List<ByteBuf> reply) {
+        for (ByteBuf buf : reply) {
+            ctx.write(buf, ctx.voidPromise());
+        }
+        scheduleFlush(ctx);
         logPendingOperations();
     }
 
+    private void scheduleFlush(ChannelHandlerContext ctx) {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        //queued behind the replies which are already waiting on the event loop, so they all leave with a single flush
+        ctx.executor().execute(() -> {
+            flushScheduled = false;
+            ctx.flush();
+        });
+    }
+
     private void logPendingOperations() {
         final int pendingOperations = this.pendingOperations.decrementAndGet();
         if (pendingOperations == 0 && loggedHighPending) {
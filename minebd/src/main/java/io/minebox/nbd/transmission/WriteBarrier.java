@@ -0,0 +1,67 @@
+package io.minebox.nbd.transmission;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * keeps track of the writes and trims of a connection which were accepted but did not land yet,
+ * so a flush can wait for exactly those without holding up anything that arrived later.
+ */
+class WriteBarrier {
+
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>(); //ascending by barrier, since sequence numbers only grow
+    private long nextSequence = 0;
+
+    /**
+     * @return the sequence number to hand to {@link #end(long)} once the operation landed
+     */
+    synchronized long begin() {
+        final long sequence = nextSequence++;
+        inFlight.add(sequence);
+        return sequence;
+    }
+
+    void end(long sequence) {
+        final List<CompletableFuture<Void>> drained = new ArrayList<>();
+        synchronized (this) {
+            inFlight.remove(sequence);
+            final long oldestInFlight = inFlight.isEmpty() ? nextSequence : inFlight.first();
+            while (!waiters.isEmpty() && waiters.peekFirst().barrier <= oldestInFlight) {
+                drained.add(waiters.pollFirst().future);
+            }
+        }
+        //completed outside the lock, the callbacks may well begin new operations
+        drained.forEach(future -> future.complete(null));
+    }
+
+    /**
+     * @return a future which completes once every operation begun before this call has ended
+     */
+    synchronized CompletableFuture<Void> drained() {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (inFlight.isEmpty()) {
+            future.complete(null);
+        } else {
+            waiters.addLast(new Waiter(nextSequence, future));
+        }
+        return future;
+    }
+
+    synchronized int inFlight() {
+        return inFlight.size();
+    }
+
+    private static final class Waiter {
+        final long barrier;
+        final CompletableFuture<Void> future;
+
+        Waiter(long barrier, CompletableFuture<Void> future) {
+            this.barrier = barrier;
+            this.future = future;
+        }
+    }
+}
@@ -2,8 +2,10 @@ package io.minebox.nbd;
 
 import java.nio.ByteBuffer;
 
+import io.minebox.nbd.encryption.BitPatternGenerator;
 import io.minebox.nbd.encryption.EncConstants;
 import io.minebox.nbd.encryption.SymmetricEncryption;
+import org.junit.Assert;
 import org.junit.Test;
 
 /**
@@ -20,6 +22,76 @@ public class ByteBufferEncryptionTest {
 //        System.out.println("result = " + result.getLong());
     }
 
+    @Test
+    public void testEncryptionsShareTheirThreads() {
+        final ByteBuffer large = ByteBuffer.allocate(64 * EncConstants.BLOCKSIZE);
+        for (int i = 0; i < 4; i++) {
+            final Encryption encryption = new SymmetricEncryption(new StaticEncyptionKeyProvider("keyForTesting" + i));
+            encryption.encrypt(0, large.duplicate()); //large enough to be spread over the pool
+        }
+        final long threads = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("encryption-"))
+                .count();
+        Assert.assertTrue("got " + threads + " encryption threads", threads <= Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void testInPlaceMatchesCopy() {
+        final Encryption encryption = new SymmetricEncryption(new StaticEncyptionKeyProvider("keyForTesting"));
+        final long offset = EncConstants.BLOCKSIZE * 7 + 100;
+        final byte[] plaintext = new byte[3 * EncConstants.BLOCKSIZE];
+        for (int i = 0; i < plaintext.length; i++) {
+            plaintext[i] = (byte) i;
+        }
+        final ByteBuffer copied = encryption.encrypt(offset, ByteBuffer.wrap(plaintext));
+
+        final ByteBuffer inPlace = ByteBuffer.allocateDirect(plaintext.length);
+        inPlace.put(plaintext);
+        inPlace.flip();
+        encryption.encrypt(offset, inPlace.duplicate(), inPlace.duplicate());
+        Assert.assertEquals(copied, inPlace);
+
+        encryption.encrypt(offset, inPlace.duplicate(), inPlace.duplicate());
+        Assert.assertEquals(ByteBuffer.wrap(plaintext), inPlace);
+    }
+
+    @Test
+    public void testMatchesBytewiseReference() {
+        final Encryption encryption = new SymmetricEncryption(new StaticEncyptionKeyProvider("keyForTesting"));
+        final BitPatternGenerator reference = new BitPatternGenerator("keyForTesting");
+        final long offset = EncConstants.BLOCKSIZE * 3 + 4093; //unaligned start, crossing two block borders
+        final byte[] plaintext = new byte[EncConstants.BLOCKSIZE + 11];
+        for (int i = 0; i < plaintext.length; i++) {
+            plaintext[i] = (byte) (i * 13);
+        }
+        final ByteBuffer encrypted = encryption.encrypt(offset, ByteBuffer.wrap(plaintext));
+        for (int i = 0; i < plaintext.length; i++) {
+            final long absolute = offset + i;
+            final byte[] pad = reference.createDeterministicPattern(absolute / EncConstants.BLOCKSIZE);
+            final byte expected = (byte) (plaintext[i] ^ pad[(int) (absolute % EncConstants.BLOCKSIZE)]);
+            Assert.assertEquals("byte " + i, expected, encrypted.get(i));
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        final Encryption encryption = new SymmetricEncryption(new StaticEncyptionKeyProvider("keyForTesting"));
+        final long offset = EncConstants.BLOCKSIZE * 9 + 123;
+        final byte[] plaintext = new byte[20 * EncConstants.BLOCKSIZE + 5];
+        for (int i = 0; i < plaintext.length; i++) {
+            plaintext[i] = (byte) (i * 3);
+        }
+        final ByteBuffer parallel = encryption.encrypt(offset, ByteBuffer.wrap(plaintext));
+
+        final ByteBuffer sequential = ByteBuffer.allocate(plaintext.length);
+        for (int start = 0; start < plaintext.length; start += EncConstants.BLOCKSIZE) {
+            final int length = Math.min(EncConstants.BLOCKSIZE, plaintext.length - start);
+            encryption.encrypt(offset + start, ByteBuffer.wrap(plaintext, start, length), sequential);
+        }
+        sequential.flip();
+        Assert.assertEquals(sequential, parallel);
+    }
+
     public ByteBuffer testFor(long offset, int msgSize) {
         final byte[] plaintext = new byte[msgSize];
         final ByteBuffer plainBuffer = ByteBuffer.wrap(plaintext);
@@ -5,6 +5,7 @@ import java.util.concurrent.CountDownLatch;
 
 import com.codahale.metrics.MetricRegistry;
 import io.minebox.config.MinebdConfig;
+import io.minebox.nbd.encryption.AesCtrEncryption;
 import io.minebox.nbd.encryption.SymmetricEncryption;
 import io.minebox.nbd.ep.BucketFactory;
 import io.minebox.nbd.ep.MineboxExport;
@@ -28,7 +29,7 @@ public class CrashTest {
         final SymmetricEncryption test123 = new SymmetricEncryption(keyProvider);
         MinebdConfig cfg = TestUtil.createSampleConfig();
 
-        final BucketFactory bucketFactory = new BucketFactory(MineboxExportTest.SERIAL_NUMBER_SERVICE, cfg, test123, TestDownloadService::new);
+        final BucketFactory bucketFactory = new BucketFactory(MineboxExportTest.SERIAL_NUMBER_SERVICE, cfg, test123, new AesCtrEncryption(keyProvider), TestDownloadService::new);
         final SystemdUtil mockSystemD = new SystemdUtil() {
             @Override
             void sendNotify() {
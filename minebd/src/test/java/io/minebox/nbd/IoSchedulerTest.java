@@ -0,0 +1,103 @@
+package io.minebox.nbd;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.MetricRegistry;
+import io.minebox.config.MinebdConfig;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IoSchedulerTest {
+
+    @Test
+    public void testReadsOvertakeQueuedWrites() throws InterruptedException {
+        final IoScheduler underTest = new IoScheduler(1, Long.MAX_VALUE);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        underTest.execute(IoScheduler.Priority.WRITE, 0, () -> awaitQuietly(blocker));
+        underTest.execute(IoScheduler.Priority.WRITE, 0, () -> record(order, "w1", done));
+        underTest.execute(IoScheduler.Priority.WRITE, 0, () -> record(order, "w2", done));
+        underTest.execute(IoScheduler.Priority.READ, 0, () -> record(order, "r1", done));
+        underTest.execute(IoScheduler.Priority.READ, 0, () -> record(order, "r2", done));
+        blocker.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("[r1, r2, w1, w2]", order.toString());
+        underTest.shutdown();
+    }
+
+    @Test
+    public void testAvailableOnceDrained() throws InterruptedException {
+        final IoScheduler underTest = new IoScheduler(2, 100);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        underTest.execute(IoScheduler.Priority.WRITE, 60, () -> awaitQuietly(blocker));
+        Assert.assertFalse(underTest.isSaturated());
+        underTest.execute(IoScheduler.Priority.WRITE, 60, () -> awaitQuietly(blocker));
+        Assert.assertTrue(underTest.isSaturated());
+
+        final CountDownLatch available = new CountDownLatch(1);
+        final AtomicBoolean wasSaturated = new AtomicBoolean();
+        underTest.whenAvailable(() -> {
+            wasSaturated.set(underTest.isSaturated());
+            available.countDown();
+        });
+        Assert.assertEquals(1, available.getCount());
+        blocker.countDown();
+        Assert.assertTrue(available.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(wasSaturated.get());
+        underTest.shutdown();
+    }
+
+    @Test
+    public void testPerTaskThreadsAreLimited() throws InterruptedException {
+        final IoScheduler underTest = new IoScheduler(Executors.newCachedThreadPool(), 2, 0, Long.MAX_VALUE);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            underTest.execute(IoScheduler.Priority.WRITE, 0, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        underTest.shutdown();
+        Assert.assertEquals("shutdown has to wait for the queued operations", 0, done.getCount());
+        Assert.assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testVirtualModeRunsOnAnyJvm() throws InterruptedException {
+        final MinebdConfig config = new MinebdConfig();
+        config.ioExecution = ExecutionMode.VIRTUAL; //older JVMs fall back to the platform pool
+        final IoScheduler underTest = new IoScheduler(config, new MetricRegistry());
+        final CountDownLatch done = new CountDownLatch(1);
+        underTest.execute(IoScheduler.Priority.READ, 4096, done::countDown);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        underTest.shutdown();
+    }
+
+    private static void record(List<String> order, String name, CountDownLatch done) {
+        order.add(name);
+        done.countDown();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package io.minebox.nbd.download;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.minebox.nbd.download.DownloadService.RecoveryStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackgroundDelegatedDownloadServiceTest {
+
+    private static List<RecoverableFile> files(int count) {
+        final List<RecoverableFile> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ret.add(new RecoverableFile(Collections.singletonList(new File("unused")), "minebox_v1_" + i + ".dat"));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testLimitsConcurrentDownloads() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch allDone = new CountDownLatch(10);
+        final BackgroundDelegatedDownloadService underTest = new BackgroundDelegatedDownloadService(new FakeDownload() {
+            @Override
+            public RecoveryStatus downloadIfPossible(RecoverableFile file) {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                running.decrementAndGet();
+                allDone.countDown();
+                return RecoveryStatus.RECOVERED;
+            }
+        }, files(10), 3);
+        Assert.assertTrue(allDone.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue("at most 3 at once, got " + maxRunning.get(), maxRunning.get() <= 3);
+        Assert.assertTrue("in parallel", maxRunning.get() > 1);
+        underTest.shutdown();
+    }
+
+    @Test
+    public void testOnDemandStartsWhileBackgroundIsBusy() throws Exception {
+        final CountDownLatch mayFinish = new CountDownLatch(1);
+        final List<String> downloaded = Collections.synchronizedList(new ArrayList<>());
+        final RecoverableFile requested = files(1).get(0);
+        final BackgroundDelegatedDownloadService underTest = new BackgroundDelegatedDownloadService(new FakeDownload() {
+            @Override
+            public RecoveryStatus downloadIfPossible(RecoverableFile file) {
+                downloaded.add(file.fileName);
+                if (!file.equals(requested)) {
+                    try {
+                        mayFinish.await(); //a large file which takes minutes
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return RecoveryStatus.RECOVERED;
+            }
+        }, files(20).subList(1, 20), 1);
+        while (downloaded.isEmpty()) {
+            Thread.sleep(10); //the background took its slot
+        }
+        final AtomicReference<RecoveryStatus> status = new AtomicReference<>();
+        final Thread user = new Thread(() -> status.set(underTest.downloadIfPossible(requested)));
+        user.start();
+        user.join(5000);
+        Assert.assertFalse("must not wait for the background download", user.isAlive());
+        Assert.assertEquals(RecoveryStatus.RECOVERED, status.get());
+        Assert.assertEquals(2, downloaded.size());
+
+        mayFinish.countDown();
+        underTest.shutdown();
+        final int afterShutdown = downloaded.size();
+        Thread.sleep(100);
+        Assert.assertEquals("background downloads stopped", afterShutdown, downloaded.size());
+        Assert.assertEquals(RecoveryStatus.ERROR, underTest.downloadIfPossible(files(21).get(20)));
+    }
+
+    @Test
+    public void testQueuedRequestsGetAnAnswerOnShutdown() throws Exception {
+        final CountDownLatch never = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+        final BackgroundDelegatedDownloadService underTest = new BackgroundDelegatedDownloadService(new FakeDownload() {
+            @Override
+            public RecoveryStatus downloadIfPossible(RecoverableFile file) {
+                started.incrementAndGet();
+                try {
+                    never.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return RecoveryStatus.RECOVERED;
+            }
+        }, files(5).subList(1, 5), 1);
+        final List<RecoverableFile> requested = files(7).subList(5, 7);
+        final Thread running = new Thread(() -> underTest.downloadIfPossible(requested.get(0)));
+        running.setDaemon(true);
+        running.start();
+        while (started.get() < 2) {
+            Thread.sleep(10); //the background one and the first request occupy both threads
+        }
+        final AtomicReference<RecoveryStatus> status = new AtomicReference<>();
+        final Thread queued = new Thread(() -> status.set(underTest.downloadIfPossible(requested.get(1))));
+        queued.start();
+        Thread.sleep(100);
+
+        underTest.shutdown(100, TimeUnit.MILLISECONDS);
+        queued.join(5000);
+        Assert.assertFalse("the queued request must not wait forever", queued.isAlive());
+        Assert.assertEquals(RecoveryStatus.ERROR, status.get());
+        Assert.assertEquals(2, started.get());
+        never.countDown();
+    }
+
+    private abstract static class FakeDownload implements DownloadService {
+        @Override
+        public boolean hasMetadata() {
+            return true;
+        }
+
+        @Override
+        public boolean connectedMetadata() {
+            return true;
+        }
+
+        @Override
+        public double completedPercent(File parentDir) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package io.minebox.nbd.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.Range;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PartialRestoreTest {
+
+    private static final int LENGTH = 10000;
+    private static final int FETCH_SIZE = 1000;
+
+    private final byte[] remote = new byte[LENGTH];
+    private final List<Long> fetched = new ArrayList<>();
+    private final AtomicBoolean promoted = new AtomicBoolean(false);
+    private RecoverableFile file;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < LENGTH; i++) {
+            remote[i] = (byte) (i % 251 + 1);
+        }
+        final Path dir = Files.createTempDirectory("partial");
+        file = new RecoverableFile(Arrays.asList(dir.resolve("a").toFile(), dir.resolve("b").toFile()), "minebox_v2_0.dat");
+        file.parentDirectories.forEach(File::mkdirs);
+    }
+
+    private PartialRestore partialRestore() throws IOException {
+        return new PartialRestore(file, LENGTH, FETCH_SIZE, (offset, length, background) -> {
+            fetched.add(offset);
+            return Arrays.copyOfRange(remote, (int) offset, (int) offset + length);
+        }, () -> promoted.set(true));
+    }
+
+    private byte[] read(File partialFile, int offset, int length) throws IOException {
+        return Arrays.copyOfRange(Files.readAllBytes(partialFile.toPath()), offset, offset + length);
+    }
+
+    @Test
+    public void testFetchesOnlyTouchedPieces() throws IOException {
+        final PartialRestore underTest = partialRestore();
+        underTest.ensurePresent(2500, 600);
+        Assert.assertEquals(Arrays.asList(2000L, 3000L), fetched);
+        underTest.ensurePresent(2000, 2000);
+        Assert.assertEquals("no second round trip for what is there", 2, fetched.size());
+        for (File partialFile : underTest.partialFiles()) {
+            Assert.assertArrayEquals(Arrays.copyOfRange(remote, 2000, 4000), read(partialFile, 2000, 2000));
+        }
+        Assert.assertFalse(underTest.isComplete());
+    }
+
+    @Test
+    public void testOverwrittenRangesAreKept() throws IOException {
+        final PartialRestore underTest = partialRestore();
+        final Range<Long> overwrite = underTest.beginOverwrite(1000, 500);
+        underTest.ensurePresent(1000, 1000);
+        Assert.assertEquals("the rest of the piece is still needed", Arrays.asList(1000L), fetched);
+        for (File partialFile : underTest.partialFiles()) {
+            Assert.assertArrayEquals("the range being written must not get the old data", new byte[500], read(partialFile, 1000, 500));
+        }
+        underTest.endOverwrite(overwrite, true);
+        Assert.assertTrue(underTest.isPresent(1000, 2000));
+
+        underTest.endOverwrite(underTest.beginOverwrite(5000, 1000), true);
+        underTest.ensurePresent(5000, 1000);
+        Assert.assertEquals("overwritten completely, nothing to fetch", 1, fetched.size());
+    }
+
+    @Test
+    public void testContinuesAfterRestart() throws IOException {
+        final PartialRestore first = partialRestore();
+        Assert.assertTrue(first.open());
+        first.ensurePresent(0, 3000);
+        first.save();
+        first.release();
+
+        fetched.clear();
+        final PartialRestore second = partialRestore();
+        second.ensurePresent(0, 4000);
+        Assert.assertEquals(Arrays.asList(3000L), fetched);
+    }
+
+    @Test
+    public void testDoesNotWaitForSlowedDownBackfill() throws Exception {
+        final CountDownLatch mayBackfill = new CountDownLatch(1);
+        final List<Boolean> background = Collections.synchronizedList(new ArrayList<>());
+        final PartialRestore underTest = new PartialRestore(file, LENGTH, FETCH_SIZE, (offset, length, isBackground) -> {
+            background.add(isBackground);
+            if (isBackground) {
+                try {
+                    mayBackfill.await(); //waiting for bandwidth
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return Arrays.copyOfRange(remote, (int) offset, (int) offset + length);
+        }, () -> promoted.set(true));
+        final Thread backfill = new Thread(() -> {
+            try {
+                underTest.backfillNext();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        backfill.start();
+        while (background.isEmpty()) {
+            Thread.sleep(10);
+        }
+
+        underTest.ensurePresent(0, 100);
+        Assert.assertEquals("fetched again instead of waiting", Arrays.asList(true, false), background);
+        Assert.assertTrue(underTest.isPresent(0, FETCH_SIZE));
+        mayBackfill.countDown();
+        backfill.join(5000);
+        for (File partialFile : underTest.partialFiles()) {
+            Assert.assertArrayEquals(Arrays.copyOfRange(remote, 0, FETCH_SIZE), read(partialFile, 0, FETCH_SIZE));
+        }
+    }
+
+    @Test
+    public void testPromotedOnceCompleteAndReleased() throws IOException {
+        final PartialRestore underTest = partialRestore();
+        Assert.assertTrue(underTest.open());
+        while (underTest.backfillNext()) {
+            underTest.save();
+        }
+        Assert.assertTrue(underTest.isComplete());
+        Assert.assertEquals(0, underTest.missingRanges());
+        Assert.assertFalse("still in use", underTest.promoteIfComplete());
+
+        underTest.release();
+        Assert.assertTrue(promoted.get());
+        Assert.assertFalse("the file has its real name now", underTest.open());
+        file.forEach(complete -> {
+            try {
+                Assert.assertArrayEquals(remote, Files.readAllBytes(complete.toPath()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            Assert.assertFalse(new File(complete.getParentFile(), complete.getName() + PartialRestore.PARTIAL_SUFFIX).exists());
+        });
+        Assert.assertEquals(LENGTH / FETCH_SIZE, fetched.size());
+    }
+}
@@ -0,0 +1,77 @@
+package io.minebox.nbd.download;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RestoreQueueTest {
+
+    private static RecoverableFile file(int bucketNumber) {
+        return new RecoverableFile(Collections.singletonList(new File("unused")), "minebox_v1_" + bucketNumber + ".dat");
+    }
+
+    private static RestoreQueue queue(int count, int maxRecentRequests) {
+        final List<RecoverableFile> files = new ArrayList<>();
+        for (int i = count - 1; i >= 0; i--) {
+            files.add(file(i));
+        }
+        return new RestoreQueue(files, maxRecentRequests);
+    }
+
+    @Test
+    public void testLowestFirstWithoutRequests() {
+        final RestoreQueue underTest = queue(3, 4);
+        Assert.assertEquals(file(0), underTest.next());
+        Assert.assertEquals(file(1), underTest.next());
+        Assert.assertEquals(file(2), underTest.next());
+        Assert.assertNull(underTest.next());
+        Assert.assertTrue(underTest.isEmpty());
+    }
+
+    @Test
+    public void testClosestToRequestsFirst() {
+        final RestoreQueue underTest = queue(100, 4);
+        underTest.requested(file(50));
+        Assert.assertEquals(99, underTest.size());
+        Assert.assertEquals(file(51), underTest.next());
+        Assert.assertEquals(file(49), underTest.next());
+        underTest.requested(file(10));
+        Assert.assertEquals("the most recent request wins ties", file(11), underTest.next());
+        Assert.assertEquals(file(9), underTest.next());
+        Assert.assertEquals(file(12), underTest.next());
+        Assert.assertEquals(file(8), underTest.next());
+        Assert.assertEquals(file(52), underTest.next());
+        Assert.assertEquals(file(48), underTest.next());
+    }
+
+    @Test
+    public void testAccessedFileStaysQueued() {
+        final RestoreQueue underTest = queue(100, 4);
+        underTest.accessed(file(50));
+        Assert.assertEquals(100, underTest.size());
+        Assert.assertEquals("the rest of it first", file(50), underTest.next());
+        Assert.assertEquals(file(51), underTest.next());
+        Assert.assertEquals(file(49), underTest.next());
+    }
+
+    @Test
+    public void testForgetsOldRequests() {
+        final RestoreQueue underTest = queue(100, 1);
+        underTest.requested(file(90));
+        underTest.requested(file(10));
+        for (int distance = 1; distance <= 10; distance++) {
+            Assert.assertEquals("90 is forgotten", file(10 + distance), underTest.next());
+            Assert.assertEquals(file(10 - distance), underTest.next());
+        }
+        Assert.assertEquals(file(21), underTest.next());
+        int left = 0;
+        while (underTest.next() != null) {
+            left++;
+        }
+        Assert.assertEquals(100 - 2 - 21, left);
+    }
+}
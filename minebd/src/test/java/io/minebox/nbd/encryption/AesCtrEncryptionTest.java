@@ -0,0 +1,55 @@
+package io.minebox.nbd.encryption;
+
+import java.nio.ByteBuffer;
+
+import io.minebox.nbd.StaticEncyptionKeyProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AesCtrEncryptionTest {
+
+    private final AesCtrEncryption underTest = new AesCtrEncryption(new StaticEncyptionKeyProvider("test"));
+
+    @Test
+    public void testRoundTrip() {
+        final byte[] plaintext = pattern(3 * EncConstants.BLOCKSIZE);
+        final ByteBuffer encrypted = underTest.encrypt(EncConstants.BLOCKSIZE * 5, ByteBuffer.wrap(plaintext));
+        Assert.assertNotEquals(ByteBuffer.wrap(plaintext), encrypted);
+        final ByteBuffer decrypted = underTest.encrypt(EncConstants.BLOCKSIZE * 5, encrypted);
+        Assert.assertEquals(ByteBuffer.wrap(plaintext), decrypted);
+    }
+
+    @Test
+    public void testSubRangesMatchWholeRange() {
+        final long offset = EncConstants.BLOCKSIZE * 3;
+        final byte[] plaintext = pattern(2 * EncConstants.BLOCKSIZE);
+        final ByteBuffer whole = underTest.encrypt(offset, ByteBuffer.wrap(plaintext));
+
+        //unaligned to both the AES block and the 4k block
+        final int start = EncConstants.BLOCKSIZE - 7;
+        final ByteBuffer part = underTest.encrypt(offset + start, ByteBuffer.wrap(plaintext, start, 100));
+        whole.position(start);
+        whole.limit(start + 100);
+        Assert.assertEquals(whole, part);
+    }
+
+    @Test
+    public void testInPlace() {
+        final byte[] plaintext = pattern(EncConstants.BLOCKSIZE + 33);
+        final ByteBuffer expected = underTest.encrypt(17, ByteBuffer.wrap(plaintext));
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(plaintext.length);
+        direct.put(plaintext);
+        direct.flip();
+        underTest.encrypt(17, direct.duplicate(), direct.duplicate());
+        Assert.assertEquals(expected, direct);
+    }
+
+    private static byte[] pattern(int length) {
+        final byte[] ret = new byte[length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (byte) (i * 7);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,47 @@
+package io.minebox.nbd.ep;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import io.dropwizard.util.Size;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AllocationBitmapTest {
+
+    @Test
+    public void testPersistedAndInvalidated() throws IOException {
+        final Path dir = Files.createTempDirectory("allocation");
+        final Path dat = dir.resolve("minebox_v1_0.dat");
+        try {
+            Files.write(dat, new byte[16 * 1024]);
+            final long bucketSize = Size.kilobytes(64).toBytes();
+
+            final AllocationBitmap fresh = AllocationBitmap.load(dat, bucketSize);
+            Assert.assertEquals(16, fresh.blockCount());
+            Assert.assertEquals("without a bitmap everything within the file counts as allocated", 4, fresh.allocatedBlocks());
+
+            fresh.release(1, 3);
+            fresh.allocate(10);
+            fresh.saveIfDirty(dat);
+            final AllocationBitmap loaded = AllocationBitmap.load(dat, bucketSize);
+            Assert.assertTrue(loaded.isAllocated(0));
+            Assert.assertFalse(loaded.isAllocated(1));
+            Assert.assertFalse(loaded.isAllocated(2));
+            Assert.assertTrue(loaded.isAllocated(3));
+            Assert.assertTrue(loaded.isAllocated(10));
+            Assert.assertEquals(3, loaded.runEnd(1, 16));
+            Assert.assertEquals(10, loaded.runEnd(4, 16));
+
+            Files.write(dat, new byte[8 * 1024], StandardOpenOption.APPEND);
+            final AllocationBitmap stale = AllocationBitmap.load(dat, bucketSize);
+            Assert.assertEquals("a changed file must not trust the old bitmap", 6, stale.allocatedBlocks());
+        } finally {
+            Files.deleteIfExists(AllocationBitmap.sidecarOf(dat));
+            Files.deleteIfExists(dat);
+            Files.delete(dir);
+        }
+    }
+}
@@ -2,6 +2,13 @@ package io.minebox.nbd.ep;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.util.Size;
@@ -10,6 +17,7 @@ import io.minebox.nbd.NullEncryption;
 import io.minebox.nbd.SerialNumberService;
 import io.minebox.nbd.StaticEncyptionKeyProvider;
 import io.minebox.nbd.TestUtil;
+import io.minebox.nbd.download.RecoverableFile;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -33,7 +41,7 @@ public class BucketTest {
     @Test
     public void testExport() throws IOException {
         final MinebdConfig cfg = TestUtil.createSampleConfig();
-        final BucketFactory bucketFactory = new BucketFactory(new SerialNumberService(new StaticEncyptionKeyProvider("testJunit")), cfg, new NullEncryption(), TestDownloadService::new);
+        final BucketFactory bucketFactory = new BucketFactory(new SerialNumberService(new StaticEncyptionKeyProvider("testJunit")), cfg, new NullEncryption(), new NullEncryption(), TestDownloadService::new);
         final MineboxExport export = new MineboxExport(cfg, new MetricRegistry(), bucketFactory);
         export.open("test");
         export.write(0, ByteBuffer.wrap(new byte[]{1, 2, 3}), true);
@@ -41,12 +49,34 @@ public class BucketTest {
         export.trim(0, (int) cfg.bucketSize.toBytes());
     }
 
+    @Test
+    public void testNewBucketAsksForDownloadsOnlyIfThereIsOne() throws IOException {
+        final MinebdConfig cfg = TestUtil.createSampleConfig();
+        final List<String> downloads = new ArrayList<>();
+        final BucketFactory bucketFactory = new BucketFactory(new SerialNumberService(new StaticEncyptionKeyProvider("testJunit")), cfg, new NullEncryption(), new NullEncryption(), () -> new TestDownloadService() {
+            @Override
+            public boolean isRecoverable(RecoverableFile file) {
+                return file.fileName.equals(BucketFormat.V2.fileName(1));
+            }
+
+            @Override
+            public RecoveryStatus downloadIfPossible(RecoverableFile file) {
+                downloads.add(file.fileName);
+                return RecoveryStatus.NO_FILE;
+            }
+        });
+        bucketFactory.create(0).close();
+        Assert.assertEquals("nothing to restore for either name", 0, downloads.size());
+        bucketFactory.create(1).close();
+        Assert.assertEquals(Collections.singletonList(BucketFormat.V2.fileName(1)), downloads);
+    }
+
     @Test
     public void checkPositiveBounds() throws IOException {
         MinebdConfig cfg = TestUtil.createSampleConfig();
         cfg.bucketSize = Size.megabytes(40);
         long bucketSize = cfg.bucketSize.toBytes();
-        final BucketFactory bucketFactory = new BucketFactory(new SerialNumberService(new StaticEncyptionKeyProvider("testJunit")), cfg, new NullEncryption(), TestDownloadService::new);
+        final BucketFactory bucketFactory = new BucketFactory(new SerialNumberService(new StaticEncyptionKeyProvider("testJunit")), cfg, new NullEncryption(), new NullEncryption(), TestDownloadService::new);
 
         final Raid1Buckets underTest = (Raid1Buckets) bucketFactory.create(0);
 
@@ -66,4 +96,37 @@ public class BucketTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testConcurrentWritesToOneBucket() throws Exception {
+        final MinebdConfig cfg = TestUtil.createSampleConfig();
+        final BucketFactory bucketFactory = new BucketFactory(new SerialNumberService(new StaticEncyptionKeyProvider("testJunit")), cfg, new NullEncryption(), new NullEncryption(), TestDownloadService::new);
+        final MineboxExport export = new MineboxExport(cfg, new MetricRegistry(), bucketFactory);
+        final int blocks = 256;
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> writes = new ArrayList<>();
+            for (int i = 0; i < blocks; i++) {
+                final int block = i;
+                writes.add(executor.submit(() -> {
+                    final byte[] data = new byte[4096];
+                    Arrays.fill(data, (byte) (block + 1));
+                    export.write(block * 4096L, ByteBuffer.wrap(data), false);
+                    return null;
+                }));
+            }
+            for (Future<?> write : writes) {
+                write.get();
+            }
+            final ByteBuffer read = export.read(0, blocks * 4096);
+            for (int i = 0; i < blocks; i++) {
+                Assert.assertEquals((byte) (i + 1), read.get(i * 4096));
+                Assert.assertEquals((byte) (i + 1), read.get(i * 4096 + 4095));
+            }
+        } finally {
+            executor.shutdown();
+            export.trim(0, cfg.bucketSize.toBytes());
+            export.close();
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package io.minebox.nbd.ep;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class HolePuncherTest {
+
+    @Test
+    public void testPunchedRangeReadsZeroes() throws IOException {
+        final Path file = Files.createTempFile("holes", ".dat");
+        try {
+            final byte[] data = new byte[64 * 1024];
+            Arrays.fill(data, (byte) 1);
+            Files.write(file, data);
+
+            final boolean punched = HolePuncher.punchHole(file, 8192, 16384);
+            Assume.assumeTrue("punching holes is not supported here", punched);
+
+            final byte[] after = Files.readAllBytes(file);
+            Assert.assertEquals("the file size must be kept", data.length, after.length);
+            Arrays.fill(data, 8192, 8192 + 16384, (byte) 0);
+            Assert.assertArrayEquals(data, after);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSingleFailureKeepsPunching() throws IOException {
+        final Path file = Files.createTempFile("holes", ".dat");
+        try {
+            Files.write(file, new byte[64 * 1024]);
+            Assume.assumeTrue("punching holes is not supported here", HolePuncher.punchHole(file, 0, 4096));
+
+            Assert.assertFalse("EINVAL", HolePuncher.punchHole(file, -4096, 4096));
+            Assert.assertTrue("one bad range must not turn it off for good", HolePuncher.punchHole(file, 4096, 4096));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package io.minebox.nbd.ep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OpenBucketsTest {
+
+    private final Set<Integer> closed = ConcurrentHashMap.newKeySet();
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final OpenBuckets underTest = new OpenBuckets(2, 2, FakeBucket::new, closed::add);
+        underTest.acquire(0).close();
+        underTest.acquire(1).close();
+        underTest.acquire(0).close();
+        underTest.acquire(2).close();
+        Assert.assertEquals(2, underTest.openCount());
+        underTest.awaitClosed(1);
+        Assert.assertEquals(Collections.singleton(1), closed);
+        Assert.assertNotNull(underTest.acquireIfOpen(0));
+        Assert.assertNull(underTest.acquireIfOpen(1));
+        underTest.close();
+    }
+
+    @Test
+    public void testBucketsInUseStayOpen() throws Exception {
+        final OpenBuckets underTest = new OpenBuckets(1, 2, FakeBucket::new, closed::add);
+        final OpenBuckets.Handle first = underTest.acquire(0);
+        underTest.acquire(1).close();
+        Assert.assertFalse("bucket 0 is still read from", ((FakeBucket) first.bucket()).closed);
+        Assert.assertEquals(1, underTest.openCount());
+
+        first.close();
+        underTest.acquire(2).close();
+        underTest.awaitClosed(0);
+        Assert.assertTrue(((FakeBucket) first.bucket()).closed);
+        underTest.close();
+    }
+
+    @Test
+    public void testReopenWaitsForClose() throws Exception {
+        final CountDownLatch closing = new CountDownLatch(1);
+        final CountDownLatch mayClose = new CountDownLatch(1);
+        final OpenBuckets underTest = new OpenBuckets(1, 2, index -> new FakeBucket(index) {
+            @Override
+            public void close() throws IOException {
+                closing.countDown();
+                try {
+                    mayClose.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.close();
+            }
+        }, closed::add);
+        final OpenBuckets.Handle first = underTest.acquire(0);
+        first.close();
+        underTest.acquire(1).close(); //does not wait for bucket 0 to be closed
+        Assert.assertTrue(closing.await(5, TimeUnit.SECONDS));
+
+        final Thread reopen = new Thread(() -> {
+            try {
+                underTest.acquire(0).close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reopen.start();
+        reopen.join(200);
+        Assert.assertTrue("must not open a second instance while the first is closing", reopen.isAlive());
+        mayClose.countDown();
+        reopen.join(5000);
+        Assert.assertFalse(reopen.isAlive());
+        Assert.assertTrue(((FakeBucket) first.bucket()).closed);
+        underTest.close();
+    }
+
+    @Test
+    public void testSlowLoadDoesNotBlockOthers() throws Exception {
+        final CountDownLatch downloaded = new CountDownLatch(1);
+        final OpenBuckets underTest = new OpenBuckets(5, 2, index -> {
+            if (index == 0) {
+                try {
+                    downloaded.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return new FakeBucket(index);
+        }, closed::add);
+        final CompletableFuture<Void> restoring = underTest.whenOpen(0);
+        Assert.assertFalse(restoring.isDone());
+        Assert.assertSame("the same load is shared", restoring, underTest.whenOpen(0));
+        underTest.acquire(1).close();
+
+        downloaded.countDown();
+        restoring.get(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(underTest.acquireIfOpen(0));
+        underTest.close();
+    }
+
+    @Test
+    public void testFailedLoadIsRetried() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final OpenBuckets underTest = new OpenBuckets(5, 2, index -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("sia is not there yet");
+            }
+            return new FakeBucket(index);
+        }, closed::add);
+        try {
+            underTest.acquire(0);
+            Assert.fail("the first load fails");
+        } catch (IOException e) {
+            Assert.assertEquals("sia is not there yet", e.getCause().getMessage());
+        }
+        underTest.acquire(0).close();
+        Assert.assertEquals(2, attempts.get());
+        underTest.close();
+    }
+
+    @Test
+    public void testPreparesOnALoaderThread() throws Exception {
+        final CountDownLatch mayFetch = new CountDownLatch(1);
+        final AtomicReference<String> preparedBy = new AtomicReference<>();
+        final OpenBuckets underTest = new OpenBuckets(5, 2, index -> new FakeBucket(index) {
+            private volatile boolean present = false;
+
+            @Override
+            public boolean isPrepared(long offset, long length, ExportProvider.Access access) {
+                return present || access == ExportProvider.Access.EXTENTS;
+            }
+
+            @Override
+            public void prepare(long offset, long length, ExportProvider.Access access) throws IOException {
+                preparedBy.set(Thread.currentThread().getName());
+                try {
+                    mayFetch.await(); //a range which is still on sia
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                present = true;
+            }
+        }, closed::add);
+        underTest.acquire(0).close();
+        Assert.assertTrue("nothing to fetch", underTest.whenPrepared(0, 0, 10, ExportProvider.Access.EXTENTS).isDone());
+
+        final CompletableFuture<Void> reading = underTest.whenPrepared(0, 0, 10, ExportProvider.Access.READ);
+        while (preparedBy.get() == null) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(reading.isDone());
+        Assert.assertTrue(preparedBy.get().startsWith("bucketLoader-"));
+        mayFetch.countDown();
+        reading.get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(underTest.whenPrepared(0, 0, 10, ExportProvider.Access.READ).isDone());
+        underTest.close();
+    }
+
+    private static class FakeBucket implements Bucket {
+        private final int bucketIndex;
+        private volatile boolean closed = false;
+
+        FakeBucket(int bucketIndex) {
+            this.bucketIndex = bucketIndex;
+        }
+
+        @Override
+        public long putBytes(long offset, ByteBuffer message) {
+            return 0;
+        }
+
+        @Override
+        public void trim(long offset, long length) {
+        }
+
+        @Override
+        public void writeZeroes(long offset, long length, boolean mayDeallocate) {
+        }
+
+        @Override
+        public long getBaseOffset() {
+            return 0;
+        }
+
+        @Override
+        public long getUpperBound() {
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+
+        @Override
+        public long calcLengthInThisBucket(long offsetInThisBucket, long length) {
+            return 0;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public long getBytes(ByteBuffer writeInto, long offsetForThisBucket, int length) {
+            return 0;
+        }
+
+        @Override
+        public long bucketIndex() {
+            return bucketIndex;
+        }
+
+        @Override
+        public List<Extent> extents(long offset, long length) {
+            return Collections.emptyList();
+        }
+    }
+}
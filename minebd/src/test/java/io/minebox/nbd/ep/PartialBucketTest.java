@@ -0,0 +1,57 @@
+package io.minebox.nbd.ep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.minebox.nbd.NullEncryption;
+import io.minebox.nbd.download.PartialRestore;
+import io.minebox.nbd.download.RecoverableFile;
+import io.minebox.nbd.encryption.EncConstants;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PartialBucketTest {
+
+    private static final int LENGTH = 4 * EncConstants.BLOCKSIZE;
+
+    private final List<Long> fetched = new ArrayList<>();
+    private PartialBucket underTest;
+
+    @Before
+    public void setUp() throws IOException {
+        final Path dir = Files.createTempDirectory("partial");
+        final RecoverableFile file = new RecoverableFile(Collections.singletonList(dir.toFile()), "minebox_v2_0.dat");
+        final PartialRestore partialRestore = new PartialRestore(file, LENGTH, EncConstants.BLOCKSIZE, (offset, length, background) -> {
+            fetched.add(offset);
+            return new byte[length];
+        }, () -> {
+        });
+        final File partialFile = partialRestore.partialFiles().get(0);
+        partialRestore.open();
+        underTest = new PartialBucket(new SingleFileBucket(0, LENGTH, new NullEncryption(), partialFile), partialRestore);
+    }
+
+    @Test
+    public void testPreparesWhatTheAccessNeeds() throws IOException {
+        Assert.assertTrue(underTest.isPrepared(0, LENGTH, ExportProvider.Access.EXTENTS));
+        Assert.assertTrue("overwritten completely", underTest.isPrepared(EncConstants.BLOCKSIZE, EncConstants.BLOCKSIZE, ExportProvider.Access.WRITE));
+        Assert.assertFalse(underTest.isPrepared(100, EncConstants.BLOCKSIZE, ExportProvider.Access.WRITE));
+        Assert.assertFalse(underTest.isPrepared(0, 100, ExportProvider.Access.READ));
+
+        underTest.prepare(100, EncConstants.BLOCKSIZE, ExportProvider.Access.WRITE);
+        Assert.assertEquals("only the blocks written partially", Arrays.asList(0L, (long) EncConstants.BLOCKSIZE), fetched);
+        Assert.assertTrue(underTest.isPrepared(0, 2 * EncConstants.BLOCKSIZE, ExportProvider.Access.READ));
+
+        underTest.getBytes(ByteBuffer.allocate(100), 0, 100);
+        Assert.assertEquals("nothing left to fetch when the request runs", 2, fetched.size());
+        underTest.close();
+    }
+}
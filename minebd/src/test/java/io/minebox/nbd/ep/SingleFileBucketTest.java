@@ -0,0 +1,118 @@
+package io.minebox.nbd.ep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import io.dropwizard.util.Size;
+import io.minebox.nbd.NullEncryption;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFileBucketTest {
+
+    private static final long BUCKET_SIZE = Size.kilobytes(64).toBytes();
+    private Path dir;
+    private File dat;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("bucket");
+        dat = dir.resolve("minebox_v1_0.dat").toFile();
+        Assert.assertTrue(dat.createNewFile());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(AllocationBitmap.sidecarOf(dat.toPath()));
+        Files.deleteIfExists(dat.toPath());
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testZeroesWithoutHolesBeyondTheEnd() throws IOException {
+        final SingleFileBucket underTest = new SingleFileBucket(0, BUCKET_SIZE, new NullEncryption(), dat);
+        underTest.putBytes(0, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        underTest.writeZeroes(8192, 8192, true);
+        Assert.assertEquals("trimming beyond the end needs no space", 4096, dat.length());
+
+        underTest.writeZeroes(8192 + 100, 8192, false);
+        Assert.assertEquals("the client asked for it to be allocated, in whole blocks", 5 * 4096, dat.length());
+        final ByteBuffer read = ByteBuffer.allocate((int) dat.length());
+        underTest.getBytes(read, 0, read.capacity());
+        Assert.assertEquals(1, read.get(0));
+        for (int i = 4096; i < read.capacity(); i++) {
+            Assert.assertEquals(0, read.get(i));
+        }
+        underTest.close();
+    }
+
+    @Test
+    public void testTrimToTheEndKeepsPartialBlocks() throws IOException {
+        final byte[] data = new byte[4096];
+        Arrays.fill(data, (byte) 1);
+        final SingleFileBucket underTest = new SingleFileBucket(0, BUCKET_SIZE, new NullEncryption(), dat);
+        underTest.putBytes(0, ByteBuffer.wrap(data));
+        underTest.putBytes(4096, ByteBuffer.wrap(data));
+        underTest.trim(100, BUCKET_SIZE - 100);
+        Assert.assertEquals("only cut at a block boundary", 4096, dat.length());
+        final ByteBuffer read = ByteBuffer.allocate(8192);
+        underTest.getBytes(read, 0, read.capacity());
+        for (int i = 0; i < read.capacity(); i++) {
+            Assert.assertEquals(i < 100 ? 1 : 0, read.get(i));
+        }
+        underTest.close();
+    }
+
+    @Test
+    public void testRewritingAllocatedBlocksKeepsTheBitmap() throws Exception {
+        final byte[] data = new byte[4096];
+        Arrays.fill(data, (byte) 1);
+        final SingleFileBucket first = new SingleFileBucket(0, BUCKET_SIZE, new NullEncryption(), dat);
+        first.putBytes(0, ByteBuffer.wrap(data));
+        first.putBytes(8192, ByteBuffer.wrap(data));
+        first.close();
+        Assert.assertEquals(2, allocatedBlocks());
+
+        Thread.sleep(10); //so the rewrite gets a new modification time
+        final SingleFileBucket second = new SingleFileBucket(0, BUCKET_SIZE, new NullEncryption(), dat);
+        Arrays.fill(data, (byte) 2);
+        second.putBytes(0, ByteBuffer.wrap(data));
+        second.flush();
+        second.close();
+        Assert.assertEquals("no block changed its state, the bitmap must still be trusted", 2, allocatedBlocks());
+    }
+
+    @Test
+    public void testSyncWritesDoNotRewriteTheSidecar() throws IOException {
+        final byte[] data = new byte[4096];
+        Arrays.fill(data, (byte) 1);
+        final SingleFileBucket underTest = new SingleFileBucket(0, BUCKET_SIZE, new NullEncryption(), dat);
+        underTest.putBytes(0, ByteBuffer.wrap(data));
+        underTest.flush();
+        final Object saved = sidecarKey();
+        Assert.assertNotNull(saved);
+
+        Arrays.fill(data, (byte) 2);
+        underTest.putBytes(0, ByteBuffer.wrap(data));
+        underTest.flush(); //what a FUA write does
+        Assert.assertEquals("no block changed its state, nothing to save", saved, sidecarKey());
+        underTest.close();
+        Assert.assertEquals(1, allocatedBlocks());
+    }
+
+    private Object sidecarKey() throws IOException {
+        //the sidecar is replaced by renaming a new file over it
+        return Files.readAttributes(AllocationBitmap.sidecarOf(dat.toPath()), BasicFileAttributes.class).fileKey();
+    }
+
+    private int allocatedBlocks() throws IOException {
+        return AllocationBitmap.load(dat.toPath(), BUCKET_SIZE).allocatedBlocks();
+    }
+}
@@ -3,7 +3,9 @@ package io.minebox.nbd.ep.chunked;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.util.Size;
@@ -12,7 +14,10 @@ import io.minebox.nbd.Constants;
 import io.minebox.nbd.NullEncryption;
 import io.minebox.nbd.SerialNumberService;
 import io.minebox.nbd.StaticEncyptionKeyProvider;
+import io.minebox.nbd.encryption.AesCtrEncryption;
+import io.minebox.nbd.encryption.SymmetricEncryption;
 import io.minebox.nbd.ep.BucketFactory;
+import io.minebox.nbd.ep.Extent;
 import io.minebox.nbd.ep.MineboxExport;
 import io.minebox.nbd.ep.TestDownloadService;
 import org.apache.commons.io.FileUtils;
@@ -48,7 +53,7 @@ public class MineboxExportTest {
     }
 
     public static MineboxExport buildMineboxExport(MinebdConfig cfg) {
-        final BucketFactory bucketFactory = new BucketFactory(SERIAL_NUMBER_SERVICE, cfg, new NullEncryption(), TestDownloadService::new);
+        final BucketFactory bucketFactory = new BucketFactory(SERIAL_NUMBER_SERVICE, cfg, new NullEncryption(), new NullEncryption(), TestDownloadService::new);
         return new MineboxExport(cfg, new MetricRegistry(), bucketFactory);
     }
 
@@ -97,4 +102,114 @@ public class MineboxExportTest {
 
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEncryptedRoundTrip() throws IOException {
+        final MinebdConfig cfg = new MinebdConfig();
+        cfg.bucketSize = Size.kilobytes(16);
+        cfg.maxOpenFiles = 3;
+        cfg.parentDirs = Collections.singletonList("encryptedfiles");
+        final BucketFactory bucketFactory = new BucketFactory(SERIAL_NUMBER_SERVICE, cfg, new SymmetricEncryption(new StaticEncyptionKeyProvider("testJunit")), new AesCtrEncryption(new StaticEncyptionKeyProvider("testJunit")), TestDownloadService::new);
+        final MineboxExport underTest = new MineboxExport(cfg, new MetricRegistry(), bucketFactory);
+        try {
+            final byte[] data = new byte[40 * Constants.KILO];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i * 31);
+            }
+            final long offset = 10 * Constants.KILO;
+            underTest.write(offset, ByteBuffer.wrap(data), false);
+
+            final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            underTest.read(offset, direct);
+            Assert.assertFalse(direct.hasRemaining());
+            direct.flip();
+            Assert.assertEquals(ByteBuffer.wrap(data), direct);
+        } finally {
+            underTest.close();
+            FileUtils.deleteDirectory(new File("encryptedfiles"));
+        }
+    }
+
+    @Test
+    public void testFlushOnlyDirtyBuckets() throws Exception {
+        final MinebdConfig cfg = new MinebdConfig();
+        cfg.bucketSize = Size.kilobytes(16);
+        cfg.maxOpenFiles = 5;
+        cfg.parentDirs = Collections.singletonList("dirtyfiles");
+        final MineboxExport underTest = buildMineboxExport(cfg);
+        try {
+            underTest.read(0, 1024);
+            underTest.write(20 * Constants.KILO, ByteBuffer.wrap(new byte[1024]), false);
+            underTest.write(40 * Constants.KILO, ByteBuffer.wrap(new byte[8 * Constants.KILO]), false);
+            Assert.assertEquals(2, underTest.dirtyBucketCount());
+            underTest.flush();
+            Assert.assertEquals(0, underTest.dirtyBucketCount());
+
+            underTest.trim(0, 1024);
+            Assert.assertEquals(1, underTest.dirtyBucketCount());
+            underTest.flushInBackground().get();
+            Assert.assertEquals(0, underTest.dirtyBucketCount());
+
+            underTest.write(60 * Constants.KILO, ByteBuffer.wrap(new byte[1024]), true);
+            Assert.assertEquals("FUA writes flush their bucket right away", 0, underTest.dirtyBucketCount());
+        } finally {
+            underTest.close();
+            FileUtils.deleteDirectory(new File("dirtyfiles"));
+        }
+    }
+
+    @Test
+    public void testWriteZeroesEncrypted() throws IOException {
+        final MinebdConfig cfg = new MinebdConfig();
+        cfg.bucketSize = Size.kilobytes(16);
+        cfg.maxOpenFiles = 3;
+        cfg.parentDirs = Collections.singletonList("zeroedfiles");
+        final BucketFactory bucketFactory = new BucketFactory(SERIAL_NUMBER_SERVICE, cfg, new SymmetricEncryption(new StaticEncyptionKeyProvider("testJunit")), new AesCtrEncryption(new StaticEncyptionKeyProvider("testJunit")), TestDownloadService::new);
+        final MineboxExport underTest = new MineboxExport(cfg, new MetricRegistry(), bucketFactory);
+        try {
+            final byte[] expected = new byte[48 * Constants.KILO];
+            for (int i = 0; i < 40 * Constants.KILO; i++) {
+                expected[i] = (byte) (i * 7 + 1);
+            }
+            underTest.write(0, ByteBuffer.wrap(expected, 0, 40 * Constants.KILO), false);
+
+            underTest.writeZeroes(5000, 20000, false, false);
+            Arrays.fill(expected, 5000, 25000, (byte) 0);
+            final byte[] small = {1, 2, 3, 4, 5};
+            underTest.write(45000, ByteBuffer.wrap(small), false); //unaligned write into a block that was never written
+            System.arraycopy(small, 0, expected, 45000, small.length);
+
+            Assert.assertEquals(ByteBuffer.wrap(expected), underTest.read(0, expected.length));
+            Assert.assertEquals(ByteBuffer.wrap(expected, 4999, 3), underTest.read(4999, 3));
+            Assert.assertEquals(ByteBuffer.wrap(expected, 44990, 20), underTest.read(44990, 20));
+
+            underTest.close();
+            final MineboxExport reopened = new MineboxExport(cfg, new MetricRegistry(), bucketFactory);
+            Assert.assertEquals("the allocation bitmaps have to survive a restart", ByteBuffer.wrap(expected), reopened.read(0, expected.length));
+            reopened.close();
+        } finally {
+            underTest.close();
+            FileUtils.deleteDirectory(new File("zeroedfiles"));
+        }
+    }
+
+    @Test
+    public void testExtents() throws IOException {
+        final MinebdConfig cfg = new MinebdConfig();
+        cfg.bucketSize = Size.kilobytes(16);
+        cfg.maxOpenFiles = 5;
+        cfg.parentDirs = Collections.singletonList("extentfiles");
+        final MineboxExport underTest = buildMineboxExport(cfg);
+        try {
+            final byte[] data = new byte[8 * Constants.KILO];
+            Arrays.fill(data, (byte) 3);
+            underTest.write(12 * Constants.KILO, ByteBuffer.wrap(data), false); //spans the border of bucket 0 and 1
+
+            final List<Extent> extents = underTest.extents(0, 48 * Constants.KILO);
+            Assert.assertEquals("[hole 12288, data 8192, hole 28672]", extents.toString());
+        } finally {
+            underTest.close();
+            FileUtils.deleteDirectory(new File("extentfiles"));
+        }
+    }
+}
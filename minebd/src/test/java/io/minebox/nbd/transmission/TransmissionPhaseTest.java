@@ -0,0 +1,100 @@
+package io.minebox.nbd.transmission;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import io.minebox.config.MinebdConfig;
+import io.minebox.nbd.IoScheduler;
+import io.minebox.nbd.Protocol;
+import io.minebox.nbd.TestUtil;
+import io.minebox.nbd.ep.Extent;
+import io.minebox.nbd.ep.ExportProvider;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TransmissionPhaseTest {
+
+    @Test
+    public void testBlockStatusLongerThan2GiB() throws Exception {
+        final long length = 0xC0000000L; //3 GiB
+        final MinebdConfig config = TestUtil.createSampleConfig();
+        final IoScheduler ioScheduler = new IoScheduler(1, config.maxInFlight.toBytes());
+        final EmbeddedChannel channel = new EmbeddedChannel(new TransmissionPhase(config, new OneHole(), ioScheduler, true, true));
+        try {
+            final ByteBuf request = Unpooled.buffer(28);
+            request.writeInt(Protocol.NBD_REQUEST_MAGIC);
+            request.writeShort(0);
+            request.writeShort(Protocol.NBD_CMD_BLOCK_STATUS);
+            request.writeLong(42);
+            request.writeLong(0);
+            request.writeInt((int) length);
+            channel.writeInbound(request);
+
+            final ByteBuf reply = awaitReply(channel);
+            Assert.assertEquals(Protocol.NBD_STRUCTURED_REPLY_MAGIC, reply.readInt());
+            Assert.assertEquals(Protocol.NBD_REPLY_FLAG_DONE, reply.readShort());
+            Assert.assertEquals("no error reply", Protocol.NBD_REPLY_TYPE_BLOCK_STATUS, reply.readShort());
+            Assert.assertEquals(42, reply.readLong());
+            Assert.assertEquals(12, reply.readInt());
+            Assert.assertEquals(Protocol.BASE_ALLOCATION_CONTEXT_ID, reply.readInt());
+            Assert.assertEquals(length, reply.readUnsignedInt());
+            Assert.assertEquals(Protocol.NBD_STATE_HOLE | Protocol.NBD_STATE_ZERO, reply.readInt());
+            reply.release();
+        } finally {
+            channel.finishAndReleaseAll();
+            ioScheduler.shutdown();
+        }
+    }
+
+    private static ByteBuf awaitReply(EmbeddedChannel channel) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            channel.runPendingTasks(); //the reply is handed to the event loop by the disk thread
+            final ByteBuf reply = channel.readOutbound();
+            if (reply != null) {
+                return reply;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("no reply");
+    }
+
+    private static class OneHole implements ExportProvider {
+        @Override
+        public List<Extent> extents(long offset, long length) {
+            return Collections.singletonList(new Extent(length, false));
+        }
+
+        @Override
+        public long open(CharSequence exportName) {
+            return 0;
+        }
+
+        @Override
+        public void read(long offset, ByteBuffer readInto) {
+        }
+
+        @Override
+        public void write(long offset, ByteBuffer message, boolean sync) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void trim(long offset, long length) {
+        }
+
+        @Override
+        public void writeZeroes(long offset, long length, boolean mayDeallocate, boolean sync) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.minebox.nbd.transmission;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WriteBarrierTest {
+
+    @Test
+    public void testNothingPending() {
+        final WriteBarrier underTest = new WriteBarrier();
+        Assert.assertTrue(underTest.drained().isDone());
+        underTest.end(underTest.begin());
+        Assert.assertTrue(underTest.drained().isDone());
+    }
+
+    @Test
+    public void testWaitsOnlyForEarlierOperations() {
+        final WriteBarrier underTest = new WriteBarrier();
+        final long first = underTest.begin();
+        final long second = underTest.begin();
+        final CompletableFuture<Void> flush = underTest.drained();
+        final long later = underTest.begin();
+
+        underTest.end(second);
+        Assert.assertFalse(flush.isDone());
+        underTest.end(first);
+        Assert.assertTrue("a later write must not hold up the flush", flush.isDone());
+        Assert.assertEquals(1, underTest.inFlight());
+
+        final CompletableFuture<Void> secondFlush = underTest.drained();
+        Assert.assertFalse(secondFlush.isDone());
+        underTest.end(later);
+        Assert.assertTrue(secondFlush.isDone());
+        Assert.assertEquals(0, underTest.inFlight());
+    }
+}